@@ -8,11 +8,12 @@ import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
-
 import core.ContractInterpreter;
 import core.Dispatcher;
+import core.store.ContractStore;
+import core.store.LocalContractStore;
+import core.store.MongoContractStore;
+import core.store.WriteBehindContractStore;
 import endpoint.coap.CoAPServer;
 import endpoint.rest.RESTServer;
 import util.NodeConnection;
@@ -89,11 +90,28 @@ public class API {
     		HLF_INTEGRATION_BOOTSTRAP_NODES
     	);     
 
-        // initialize mongo client
-		MongoClient dbClient = new MongoClient(new MongoClientURI(cfg.getString("mongo.address")));
+        // initialize contract store, mongo or the embedded one
+		ContractStore contractStore;
+		switch (cfg.getString("store.type")) {
+			case "local":
+				contractStore = new LocalContractStore(cfg);
+				break;
+			case "mongo":
+				contractStore = new MongoContractStore(cfg);
+				break;
+			default:
+				throw new ConfigurationException("Unknown contract store type: " + cfg.getString("store.type"));
+		}
+		if (cfg.getBoolean("store.writeBehind.enabled")) {
+			contractStore = new WriteBehindContractStore(cfg, contractStore);
+		}
+		
+		// write what's still queued on shutdown
+		final ContractStore storeToClose = contractStore;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> storeToClose.close()));
 		
 		// initialize contract interpreter 
-		ci = new ContractInterpreter(cfg, dbClient, dpt);
+		ci = new ContractInterpreter(cfg, contractStore, dpt);
 	}
 
 
@@ -0,0 +1,58 @@
+package core;
+
+import java.util.Collection;
+
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.Peer;
+
+import util.NodeConnection;
+
+/**
+ * An initialized channel as seen by a contract (or by the bootstrap configuration).
+ * Contract views own their HFClient, since the SDK only allows one channel object per name and client,
+ * and are shared through the {@link NodeConnectionPool} by contracts declaring the same nodes.
+ */
+public class ChannelView {
+
+	private HFClient client;
+	private Channel channel;
+	private Collection<Peer> signers;
+	private Collection<Orderer> orderers;
+	private NodeConnection[] nodes;
+
+	public ChannelView(HFClient client, Channel channel, NodeConnection[] nodes) {
+		this.client = client;
+		this.channel = channel;
+		this.signers = channel.getPeers();
+		this.orderers = channel.getOrderers();
+		this.nodes = nodes;
+	}
+
+	public HFClient getClient() {
+		return client;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public Collection<Peer> getSigners() {
+		return signers;
+	}
+
+	public Collection<Orderer> getOrderers() {
+		return orderers;
+	}
+
+	public NodeConnection[] getNodes() {
+		return nodes;
+	}
+
+	public void shutdown() {
+		// graceful, calls already in flight are allowed to finish
+		channel.shutdown(false);
+	}
+
+}
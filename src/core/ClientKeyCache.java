@@ -0,0 +1,93 @@
+package core;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded LRU of per client certificate state, keyed by the certificate itself (certificates are equal when their
+ * encodings are): the encoded public key passed to chaincodes and a pool of signature verifiers already initialized
+ * with the certificate's key, so repeat requests from the same client skip the encoding and the provider lookups.
+ */
+public class ClientKeyCache {
+
+	private static final int MAX_IDLE_VERIFIERS = 8; // per certificate
+
+	private int maxEntries;
+	private LinkedHashMap<X509Certificate, Entry> entries; // access ordered, eldest is evicted first
+
+	public ClientKeyCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<X509Certificate, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<X509Certificate, Entry> eldest) {
+				return size() > ClientKeyCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Base64 of the certificate's encoded public key
+	 */
+	public String getEncodedPublicKey(X509Certificate crt) {
+		return entry(crt).encodedPublicKey;
+	}
+
+	/**
+	 * Verifies the signature over data with the certificate's key and signature algorithm
+	 */
+	public boolean verify(X509Certificate crt, byte[] data, byte[] signature) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+
+		Entry entry = entry(crt);
+		Signature sig = entry.verifiers.poll();
+		if (sig == null) {
+			sig = Signature.getInstance(entry.sigAlgName);
+			sig.initVerify(entry.publicKey);
+		} else {
+			entry.idle.decrementAndGet();
+		}
+
+		// verify() resets the verifier for reuse, but one that threw is left in an unknown state
+		sig.update(data, 0, data.length);
+		boolean valid = sig.verify(signature);
+		if (entry.idle.incrementAndGet() <= MAX_IDLE_VERIFIERS) {
+			entry.verifiers.offer(sig);
+		} else {
+			entry.idle.decrementAndGet();
+		}
+		return valid;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private synchronized Entry entry(X509Certificate crt) {
+		return entries.computeIfAbsent(crt, Entry::new);
+	}
+
+	private static class Entry {
+		String encodedPublicKey;
+		PublicKey publicKey;
+		String sigAlgName;
+		ConcurrentLinkedQueue<Signature> verifiers = new ConcurrentLinkedQueue<Signature>();
+		AtomicInteger idle = new AtomicInteger();
+
+		Entry(X509Certificate crt) {
+			this.publicKey = crt.getPublicKey();
+			this.encodedPublicKey = Base64.getEncoder().encodeToString(publicKey.getEncoded());
+			this.sigAlgName = crt.getSigAlgName();
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration2.Configuration;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric.sdk.exception.CryptoException;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.security.CryptoPrimitives;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+
+/**
+ * Spreads channels over several crypto suites, so proposal signing isn't serialized inside a single one.
+ *
+ * Every channel gets its own HFClient, and the channel's key (its name, or its name and nodes) picks the shard
+ * whose crypto suite it uses through a consistent hash ring, so adding shards only moves a share of the channels.
+ * With a single shard every channel uses the template client's crypto suite.
+ */
+public class ClientShards {
+
+	private CryptoSuite[] suites;
+	private User user;
+	private TreeMap<Integer, Integer> ring; // point on the ring to shard
+	private Map<CryptoSuite, Integer> shardOfSuite;
+
+	private AtomicInteger[] channels; // created, per shard
+	private AtomicLong[] calls; // per shard
+
+	public ClientShards(Configuration cfg, HFClient templateClient) throws CryptoException, InvalidArgumentException {
+
+		int count = cfg.getInt("hlf.shards.count");
+		if (count <= 0)
+			count = Runtime.getRuntime().availableProcessors();
+
+		this.user = templateClient.getUserContext();
+		this.suites = new CryptoSuite[count];
+		this.suites[0] = templateClient.getCryptoSuite();
+		for (int i = 1; i < count; i++) {
+			suites[i] = newCryptoSuite(cfg);
+		}
+
+		int virtualNodes = cfg.getInt("hlf.shards.virtualNodes");
+		this.ring = new TreeMap<Integer, Integer>();
+		this.shardOfSuite = new IdentityHashMap<CryptoSuite, Integer>();
+		this.channels = new AtomicInteger[count];
+		this.calls = new AtomicLong[count];
+		for (int i = 0; i < count; i++) {
+			for (int v = 0; v < virtualNodes; v++) {
+				ring.put(hash("shard-" + i + "-" + v), i);
+			}
+			shardOfSuite.put(suites[i], i);
+			channels[i] = new AtomicInteger();
+			calls[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * New client for a channel, with the crypto suite of the shard its key falls on
+	 */
+	public HFClient newClient(String channelKey) throws CryptoException, InvalidArgumentException {
+		int shard = shardOf(channelKey);
+		channels[shard].incrementAndGet();
+
+		HFClient client = HFClient.createNewInstance();
+		client.setCryptoSuite(suites[shard]);
+		client.setUserContext(user);
+		return client;
+	}
+
+	/**
+	 * Counts a call sent through a channel of the client
+	 */
+	public void record(HFClient client) {
+		Integer shard = shardOfSuite.get(client.getCryptoSuite());
+		if (shard != null)
+			calls[shard].incrementAndGet();
+	}
+
+	public int shardOf(String channelKey) {
+		Map.Entry<Integer, Integer> point = ring.ceilingEntry(hash(channelKey));
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+
+	public int size() {
+		return suites.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ClientShards [");
+		for (int i = 0; i < suites.length; i++) {
+			sb.append(i > 0 ? ", " : "").append(i).append("={channels=").append(channels[i]).append(", calls=").append(calls[i]).append("}");
+		}
+		return sb.append("]").toString();
+	}
+
+	// same settings as the template's, threshold signing included
+	private static CryptoSuite newCryptoSuite(Configuration cfg) throws CryptoException, InvalidArgumentException {
+		try {
+			CryptoPrimitives suite = new CryptoPrimitives();
+			suite.init();
+			suite.setThreshSigGroupKey(cfg.getString("crypto.threshsig.groupKey").getBytes());
+			return suite;
+		} catch (ClassNotFoundException | IllegalAccessException | InstantiationException e) {
+			throw new CryptoException("Could not create a crypto suite for a client shard", e);
+		}
+	}
+
+	private static int hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.dto.Contract;
+
+/**
+ * Bounded LRU cache of parsed contracts, keyed by channel and contract id, in front of the contract collection.
+ * Entries are dropped once they are older than the TTL, so contracts changed by other hubs are eventually reloaded.
+ */
+public class ContractCache {
+
+	private int maxEntries;
+	private long ttl; // millis
+	private LinkedHashMap<String, Entry> entries; // access ordered, eldest is evicted first
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	private AtomicLong loads;
+	private AtomicLong loadTime; // millis spent loading missed contracts
+
+	public ContractCache(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > ContractCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.loads = new AtomicLong();
+		this.loadTime = new AtomicLong();
+	}
+
+	/**
+	 * Cached contract, or null if it's missing or expired
+	 */
+	public synchronized Contract get(String channel, String cid) {
+		String key = key(channel, cid);
+		Entry entry = entries.get(key);
+		if (entry == null || System.currentTimeMillis() - entry.cachedAt > ttl) {
+			if (entry != null) {
+				entries.remove(key);
+				evictions.incrementAndGet();
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.contract;
+	}
+
+	public synchronized void put(String channel, String cid, Contract contract) {
+		entries.put(key(channel, cid), new Entry(contract, System.currentTimeMillis()));
+	}
+
+	public synchronized void remove(String channel, String cid) {
+		entries.remove(key(channel, cid));
+	}
+
+	/**
+	 * Records how long a missed contract took to load from the database or the blockchain
+	 */
+	public void recordLoad(long millis) {
+		loads.incrementAndGet();
+		loadTime.addAndGet(millis);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public double getHitRate() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	public double getAverageLoadTime() {
+		return loads.get() == 0 ? 0 : (double) loadTime.get() / loads.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ContractCache [size=" + size() + ", hits=" + hits + ", misses=" + misses + ", hitRate=" + getHitRate()
+				+ ", evictions=" + evictions + ", averageLoadTime=" + getAverageLoadTime() + "]";
+	}
+
+	private static String key(String channel, String cid) {
+		return channel + "." + cid;
+	}
+
+	private static class Entry {
+		Contract contract;
+		long cachedAt;
+
+		Entry(Contract contract, long cachedAt) {
+			this.contract = contract;
+			this.cachedAt = cachedAt;
+		}
+	}
+
+}
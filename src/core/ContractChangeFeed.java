@@ -0,0 +1,115 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.ChaincodeEvent;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+/**
+ * Spots committed transactions that change a contract's definition, either by the chaincode
+ * function they invoked or by the chaincode event they set, and hands each changed contract to the subscriber.
+ *
+ * Refreshes run one at a time off the event thread, and a contract changed again before its refresh
+ * starts is only refreshed once.
+ */
+public class ContractChangeFeed implements BlockListener {
+
+    private static final Logger log = Logger.getLogger(ContractChangeFeed.class);
+
+	private static final Set<String> SYSTEM_CHAINCODES = new HashSet<String>(Arrays.asList("lscc", "cscc", "qscc", "escc", "vscc"));
+
+	public interface Subscriber {
+		void contractChanged(String channelName, String contractId) throws Exception;
+	}
+
+	private Set<String> functions; // chaincode functions that change a contract
+	private Set<String> events; // chaincode events set when a contract changes
+	private Subscriber subscriber;
+	private Set<String> pending; // refreshes yet to start, per channel and contract
+	private ExecutorService refresher;
+
+	public ContractChangeFeed(Configuration cfg, Subscriber subscriber) {
+		this.functions = new HashSet<String>(Arrays.asList(cfg.getStringArray("hlf.feed.functions")));
+		this.events = new HashSet<String>(Arrays.asList(cfg.getStringArray("hlf.feed.events")));
+		this.subscriber = subscriber;
+		this.pending = ConcurrentHashMap.newKeySet();
+		this.refresher = Executors.newSingleThreadExecutor();
+	}
+
+	@Override
+	public void received(BlockEvent block) {
+
+		String channelName;
+		Set<String> changed = new LinkedHashSet<String>();
+		try {
+			channelName = block.getChannelId();
+			for (TransactionEvent tx : block.getTransactionEvents()) {
+				// rejected transactions changed nothing
+				if (!tx.isValid())
+					continue;
+				for (TransactionActionInfo action : tx.getTransactionActionInfos()) {
+					ChaincodeEvent event = action.getEvent();
+					if (event != null && events.contains(event.getEventName())) {
+						changed.add(event.getChaincodeId());
+					} else if (action.getChaincodeInputArgsCount() > 0
+							&& functions.contains(new String(action.getChaincodeInputArgs(0), StandardCharsets.UTF_8))) {
+						changed.addAll(writtenChaincodes(action));
+					}
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Could not read block " + block.getBlockNumber() + " for contract changes: " + e.getMessage());
+			return;
+		}
+
+		for (String contractId : changed) {
+			schedule(channelName, contractId);
+		}
+	}
+
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	private void schedule(String channelName, String contractId) {
+		String key = channelName + "." + contractId;
+		if (!pending.add(key))
+			return;
+
+		refresher.execute(() -> {
+			pending.remove(key);
+			try {
+				subscriber.contractChanged(channelName, contractId);
+			} catch (Exception e) {
+				log.warn("Could not refresh contract " + key + ": " + e.getMessage());
+			}
+		});
+	}
+
+	// the function name doesn't say which chaincode ran it, the write set does
+	private static Set<String> writtenChaincodes(TransactionActionInfo action) {
+		Set<String> chaincodeIds = new LinkedHashSet<String>();
+		TxReadWriteSetInfo rwset = action.getTxReadWriteSet();
+		if (rwset == null)
+			return chaincodeIds;
+		for (TxReadWriteSetInfo.NsRwsetInfo ns : rwset.getNsRwsetInfos()) {
+			if (!SYSTEM_CHAINCODES.contains(ns.getNamespace()))
+				chaincodeIds.add(ns.getNamespace());
+		}
+		return chaincodeIds;
+	}
+
+}
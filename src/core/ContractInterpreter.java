@@ -2,132 +2,209 @@ package core;
 
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
-import java.text.Format;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.exception.CryptoException;
 import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
-import org.hyperledger.fabric.sdk.exception.ProposalException;
 import org.hyperledger.fabric.sdk.exception.TransactionException;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
-import com.mongodb.MongoClient;
-
 import core.dto.ChaincodeResult;
 import core.dto.Contract;
+import core.dto.ContractPolicies;
+import core.dto.VerifiedContract;
 import core.exception.InvalidContractPropertyException;
 import core.exception.NonConformantContractException;
+import core.store.ContractStore;
+import core.store.StoredContract;
 import endpoint.EntityType;
 import util.NodeConnection;
 
 public class ContractInterpreter {
+	
+    private static final Logger log = Logger.getLogger(ContractInterpreter.class);
 		
 	public static final List<String> CONTRACT_SIGNATURE_TYPES = Arrays.asList(new String[] {"multisig", "threshsig"});
+	public static final DateTimeFormatter CONTRACT_DATE_FORMAT = new DateTimeFormatterBuilder()
+			.parseLenient()
+			.appendPattern("yyyy-MM-dd HH:mm:ss")
+			.toFormatter();
 	
-	// TODO: update contracts in db if updated in bc?
-	private DBCollection contractCollection;
+	private ContractStore contractStore;
+	private boolean ackOnSign; // signing waits for the signed contract to be stored
+	private ContractCache contractCache; // parsed contracts, in front of the db
+	private ClientKeyCache clientKeys; // encoded keys and verifiers per client certificate
+	private ConcurrentMap<String, CompletableFuture<Contract>> blockchainLoads; // in flight, per channel and contract
 	private Dispatcher dpt;
 	
 	// aux vars
 	private String trustedCaPath;
-	// this is stored in memory. everytime the hub is restarted it will reverify a given contract as this will be empty
 	// the intention of this structure is to maintain knowledge about which contracts have already been parsed by the hub
-	// in terms of validity and properties that should hold
-	private Set<String> verifiedContracts; 
+	// in terms of validity and properties that should hold. it is persisted along with the contracts and reloaded on restart
+	private ConcurrentMap<String, VerifiedContract> verifiedContracts; 
+	private ConcurrentMap<String, CompletableFuture<VerifiedContract>> verifications; // in flight (or being restored), per channel and contract
+	private ExecutorService warmStartExecutor; // rebuilds the channels of reloaded contracts, in parallel
+	private ContractValidityScheduler validityScheduler;
+	private volatile boolean ready; // stored contracts are loaded and their channels built
+	private ContractChangeFeed changeFeed; // refreshes contracts changed on the blockchain
 	
-	public ContractInterpreter(Configuration cfg, MongoClient dbClient, Dispatcher dpt) {
-		// start db contract collection
-		DB db = dbClient.getDB(cfg.getString("mongo.database"));
-		contractCollection = db.getCollection(cfg.getString("mongo.contractCollection"));
+	public ContractInterpreter(Configuration cfg, ContractStore contractStore, Dispatcher dpt) {
+		// keep a ref to the contract store
+		this.contractStore = contractStore;
+		ackOnSign = cfg.getBoolean("store.writeBehind.ackOnSign");
+		contractCache = new ContractCache(cfg.getInt("cache.contracts.size"), cfg.getLong("cache.contracts.ttl"));
+		blockchainLoads = new ConcurrentHashMap<String, CompletableFuture<Contract>>();
+		clientKeys = new ClientKeyCache(cfg.getInt("cache.clients.size"));
 		
 		// keep a ref to dispatcher
 		this.dpt = dpt;
 		
-		// init verified contracts hashset
-		verifiedContracts = new HashSet<>();
-
 		// save trusted CA path for later use
 		trustedCaPath = cfg.getString("hlf.trustedCasPath");
+		
+		// init verified contracts with the ones verified before a restart
+		verifiedContracts = new ConcurrentHashMap<String, VerifiedContract>();
+		verifications = new ConcurrentHashMap<String, CompletableFuture<VerifiedContract>>();
+		warmStartExecutor = Executors.newFixedThreadPool(cfg.getInt("startup.warmup.threadPool"));
+		validityScheduler = new ContractValidityScheduler();
+		warmUp();
+		
+		// keep stored contracts in line with the blockchain
+		changeFeed = new ContractChangeFeed(cfg, this::refreshContract);
+		dpt.addBlockListener(changeFeed);
 	}
 	
 	/*** LOAD AND SAVE CONTRACT METHODS ***/
 	
-	public Contract getContract(EntityType entityType, String channel, String cid, X509Certificate clientCrt) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException, NonConformantContractException, InvalidContractPropertyException {
+	public Contract getContract(EntityType entityType, String channel, String cid, X509Certificate clientCrt) throws InvalidArgumentException, InterruptedException, ExecutionException, NonConformantContractException, InvalidContractPropertyException {
+		return awaitLoad(loadContract(entityType, channel, cid, clientCrt));
+	}
+	
+	/**
+	 * Gets the contract from memory, the db or, the first time it's seen, the blockchain.
+	 * Only one blockchain load runs per contract, concurrent callers share its outcome
+	 */
+	public CompletableFuture<Contract> loadContract(EntityType entityType, String channel, String cid, X509Certificate clientCrt) {
 		
-		// try to first load it from db - quicker
-		Contract contract = loadContractFromDb(channel, cid);
+		// try to first get it from memory - quickest
+		Contract contract = contractCache.get(channel, cid);
 		if (contract != null)
-			return contract;
+			return CompletableFuture.completedFuture(contract);
 		
-		// it wasn't in db! try to retrieve it from blockchain - slower
-		contract = loadContractFromBlockchain(entityType, channel, cid, clientCrt);
-		
-		if (!contract.conformsToStandard()) {
-			throw new NonConformantContractException("Contract does not conform to standard!");
+		// then load it from db - quicker
+		long loadStart = System.currentTimeMillis();
+		contract = loadContractFromDb(channel, cid);
+		if (contract != null) {
+			contractCache.put(channel, cid, contract);
+			contractCache.recordLoad(System.currentTimeMillis() - loadStart);
+			return CompletableFuture.completedFuture(contract);
 		}
 		
-		// fetch sig from the blockchain as well
-		setContractSignature(entityType, channel, cid,  contract, clientCrt);
+		// it wasn't in db! try to retrieve it from blockchain - slower
+		String loadKey = channel + "." + cid;
+		CompletableFuture<Contract> load = new CompletableFuture<Contract>();
+		CompletableFuture<Contract> running = blockchainLoads.putIfAbsent(loadKey, load);
+		if (running != null)
+			return running;
+		
+		// a load that just finished may have beaten us to it
+		contract = contractCache.get(channel, cid);
+		CompletableFuture<Contract> loaded = contract != null 
+				? CompletableFuture.completedFuture(contract) 
+				: loadContractAndSignatureFromBlockchain(entityType, channel, cid, clientCrt).thenApply(c -> {
+					contractCache.recordLoad(System.currentTimeMillis() - loadStart);
+					return c;
+				});
+		loaded.whenComplete((c, t) -> {
+			blockchainLoads.remove(loadKey, load);
+			if (t != null)
+				load.completeExceptionally(t);
+			else
+				load.complete(c);
+		});
+		return load;
+	}
+	
+	private CompletableFuture<Contract> loadContractAndSignatureFromBlockchain(EntityType entityType, String channel, String cid, X509Certificate clientCrt) {
 		
-		// save contract to db for future times
-		if (contract != null)
-			saveRawContractToDB(channel, cid, contract);
-		return contract;
+		return loadContractFromBlockchain(entityType, channel, cid, clientCrt).thenCompose(contract -> {
+			
+			if (contract == null) {
+				throw new CompletionException(new NonConformantContractException("Contract could not be loaded from the blockchain!"));
+			}
+			if (!contract.conformsToStandard()) {
+				throw new CompletionException(new NonConformantContractException("Contract does not conform to standard!"));
+			}
+			
+			// fetch sig from the blockchain as well, then save contract to db for future times
+			return loadContractSignature(entityType, channel, cid, contract, clientCrt).thenApply(signed -> {
+				saveRawContractToDB(channel, cid, signed);
+				return signed;
+			});
+		});
+	}
+	
+	/**
+	 * Waits on a load, rethrowing its failure as if it were the caller's
+	 */
+	private Contract awaitLoad(CompletableFuture<Contract> load) throws InvalidArgumentException, InterruptedException, ExecutionException, NonConformantContractException, InvalidContractPropertyException {
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InvalidArgumentException)
+				throw (InvalidArgumentException) cause;
+			if (cause instanceof NonConformantContractException)
+				throw (NonConformantContractException) cause;
+			if (cause instanceof InvalidContractPropertyException)
+				throw (InvalidContractPropertyException) cause;
+			if (cause instanceof ExecutionException)
+				throw (ExecutionException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw e;
+		}
 	}
 
 	private Contract loadContractFromDb(String channel, String cid) {
 		
-		// recreate key
-		final DBObject key = new BasicDBObject()
-				.append("_id", new BasicDBObject()
-					.append("channelId", channel)
-					.append("contractId", cid));
-		
-		// search and return contract if we have it in db
-		DBCursor cursor = contractCollection.find(key);
-		
-		if (cursor.count() == 0) 
-			return null;
-		
-		DBObject result = cursor.one();
-
-		String contract = (String) result.get("contract");
-		String signature = (String) result.get("signature");
+		StoredContract result = contractStore.load(channel, cid);
 		
-		if (contract == null)
+		if (result == null || result.getContract() == null) 
 			return null;
 		
-		Contract contractObj = new Contract(contract);
-		contractObj.sign(signature);
-		
-		return contractObj;
+		return new Contract(result.getContract()).withSignature(result.getSignature());
 	}
 	
-	private Contract loadContractFromBlockchain(EntityType entityType, String channel, String cid, X509Certificate clientCrt) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException {
+	private CompletableFuture<Contract> loadContractFromBlockchain(EntityType entityType, String channel, String cid, X509Certificate clientCrt) {
 		
     	// query the chaincode
-    	ChaincodeResult cr = executeContract(
+    	return executeContract(
     		entityType,
 			Dispatcher.CHAINCODE_QUERY_OPERATION, 
 			channel,
@@ -135,40 +212,78 @@ public class ContractInterpreter {
 			"getContractDefinition", 
 			clientCrt,
 			new String[] {}								// empty args
+		).thenApply(cr -> {
+	    	if (cr.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS) {
+	    		return new Contract(cr.getContent(), null);
+	    	}
+	    	
+	    	// shouldn't get here
+	    	return null;
+		});
+	}
+	
+	private CompletableFuture<Void> saveRawContractToDB(String channel, String cid, Contract contract) {
+		
+		// keep the cached copy in line with the db, the store may write it later
+		contractCache.put(channel, cid, contract);
+		
+		// only these fields, the verification is kept
+		return contractStore.saveContract(
+				channel, 
+				cid, 
+				contract.getRawRepresentation(), 
+				contract.getDigest(), 
+				contract.getSignature()
 		);
-    	
-    	if (cr.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS) {
-    		return new Contract(cr.getContent(), null);
-    	}
-    	
-    	// shouldn't get here
-    	return null;
 	}
 	
-	private void saveRawContractToDB(String channel, String cid, Contract contract) {
+	/**
+	 * Reloads a known contract whose definition changed on the blockchain. Its verification is dropped, so its next call verifies it again.
+	 * Signatures are per client and this hub's own writes, so only the definition is compared
+	 */
+	private void refreshContract(String channel, String cid) throws InterruptedException, ExecutionException {
 		
-		final DBObject key = new BasicDBObject()
-				.append("channelId", channel)
-				.append("contractId", cid);
+		Contract current = contractCache.get(channel, cid);
+		if (current == null)
+			current = loadContractFromDb(channel, cid);
 		
-		// build obj being saved
-		final DBObject contractObj = new BasicDBObject()
-				.append("contract", contract.getRawRepresentation())
-				.append("signature", contract.getSignature());
+		// never loaded by this hub, nothing to refresh
+		if (current == null)
+			return;
 		
-		// save to db (upsert)
-		contractCollection.update(
-				new BasicDBObject().append("_id", key), 
-				contractObj, 
-				true, 
-				false
-		);
+		// no client on whose behalf to query, so no public key argument (the definition doesn't depend on it)
+		ChaincodeResult definition = executeContract(
+			EntityType.ENTITY_TYPE_IOT_DEVICE,
+			Dispatcher.CHAINCODE_QUERY_OPERATION, 
+			channel,
+			cid, 
+			"getContractDefinition", 
+			null,
+			new String[] {}
+		).get();
+		if (definition.getStatus() != ChaincodeResult.CHAINCODE_SUCCESS 
+				|| definition.getContent().equals(current.getRawRepresentation()))
+			return;
+		
+		VerifiedContract dropped = verifiedContracts.remove(channel + "." + cid);
+		if (dropped != null)
+			validityScheduler.unregister(dropped);
+		contractStore.clearVerification(channel, cid);
+		
+		// the stored signature is kept, the latest one in case a signing committed meanwhile
+		Contract latest = contractCache.get(channel, cid);
+		Contract updated = new Contract(definition.getContent()).withSignature((latest != null ? latest : current).getSignature());
+		saveRawContractToDB(channel, cid, updated);
+		log.info("Contract " + channel + "." + cid + " changed on the blockchain, refreshed it");
 	}
 	
-	private void setContractSignature(EntityType entityType, String channel, String cid, Contract cc, X509Certificate clientCrt) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException, InvalidContractPropertyException {
+	/**
+	 * The contract signed with the client's signature on the blockchain, or the contract itself if there is none
+	 */
+	private CompletableFuture<Contract> loadContractSignature(EntityType entityType, String channel, String cid, Contract cc, X509Certificate clientCrt) {
 
 		// fetch client signature from contract
-    	ChaincodeResult cr = verifyAndExecuteContract(
+		CompletableFuture<ChaincodeResult> pendingResult = verifyAndExecuteContract(
 			entityType,
 			Dispatcher.CHAINCODE_QUERY_OPERATION, 
 			channel,
@@ -179,75 +294,167 @@ public class ContractInterpreter {
 			new String[] {}								// empty args
 		);
     	
-    	if (cr.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS) {
-    		cc.setSignature(cr.getContent());
-    	}
+    	return pendingResult.thenApply(cr -> {
+	    	String signature = cr.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS ? Contract.parseSignature(cr.getContent()) : null;
+	    	return signature != null ? cc.withSignature(signature) : cc;
+    	});
 	}
 	
 	
 	
 	
 
+	private void saveVerificationToDB(VerifiedContract verified) {
+		
+		// the contract itself is saved when loaded, so this is never the only field
+		contractStore.saveVerification(verified);
+	}
+	
+	/**
+	 * Loads every stored contract into memory and reloads the ones verified before a restart, so they skip verification.
+	 * Their channels and peer connections are rebuilt in the background, calls use the bootstrap nodes until then
+	 */
+	private void warmUp() {
+		
+		long start = System.currentTimeMillis();
+		int loaded = 0;
+		List<CompletableFuture<Void>> activations = new ArrayList<CompletableFuture<Void>>();
+		for (StoredContract result : contractStore.loadAll()) {
+			
+			if (result.getContract() == null)
+				continue;
+			
+			Contract contract = new Contract(result.getContract()).withSignature(result.getSignature());
+			contractCache.put(result.getChannel(), result.getContractId(), contract);
+			loaded++;
+			
+			// expired, the next call verifies it again (and fails)
+			if (!result.isVerified() || start >= result.getExpiresOn())
+				continue;
+			
+			// policies are compiled again from the stored contract
+			VerifiedContract verified;
+			try {
+				verified = new VerifiedContract(
+						result.getChannel(), 
+						result.getContractId(), 
+						result.getSignatureType(), 
+						result.getNodes(), 
+						result.getValidFrom(), 
+						result.getExpiresOn(),
+						compilePolicies(contract.getExtendedContractProperties(), result.getSignatureType(), result.getNodes())
+				);
+			} catch (InvalidContractPropertyException e) {
+				e.printStackTrace();
+				continue;
+			}
+			
+			// calls meanwhile wait for the restore, it's published once the contract is set up
+			String verificationKey = verified.getChannel() + "." + verified.getContractId();
+			CompletableFuture<VerifiedContract> restore = new CompletableFuture<VerifiedContract>();
+			verifications.put(verificationKey, restore);
+			
+			activations.add(CompletableFuture.runAsync(() -> {
+				try {
+					activateContract(verified);
+				} catch (InvalidArgumentException | InvalidContractPropertyException | TransactionException | CryptoException e) {
+					throw new CompletionException(e);
+				}
+				validityScheduler.register(verified);
+				verifiedContracts.put(verificationKey, verified);
+				verifications.remove(verificationKey, restore);
+				restore.complete(verified);
+			}, warmStartExecutor)
+			.thenCompose(v -> dpt.warmUpContract(verified.getChannel(), verified.getContractId()))
+			.exceptionally(t -> {
+				// verify it from scratch on its next call
+				if (!restore.isDone()) {
+					verifications.remove(verificationKey, restore);
+					restore.complete(null);
+				}
+				t.printStackTrace();
+				return null;
+			}));
+		}
+		
+		log.info("Loaded " + loaded + " stored contracts, rebuilding the channels of " + activations.size() + " verified ones...");
+		CompletableFuture.allOf(activations.toArray(new CompletableFuture[0])).whenComplete((v, t) -> {
+			ready = true;
+			warmStartExecutor.shutdown();
+			log.info("Warm-up done in " + (System.currentTimeMillis() - start) + " ms, ready");
+		});
+	}
+	
+	/**
+	 * True once warm-up is done, before that calls work but may be slower
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	public ContractCache getContractCache() {
+		return contractCache;
+	}
+	
+	
+
 	/*** CLIENT SIGNING CONTRACT METHODS ***/
 	/**
 	 * Method for a client to sign a contract and start using it.
+	 * The returned future completes once the signature has been committed to the blockchain
 	 */
-	public boolean signContract(EntityType entityType, String channel, String cid, X509Certificate clientCrt, String signature) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException, NonConformantContractException, InvalidContractPropertyException {
+	public CompletableFuture<Boolean> signContract(EntityType entityType, String channel, String cid, X509Certificate clientCrt, String signature) {
 		
 		// get again the contract the client "supposedly" signed
-    	Contract contract = getContract(entityType, channel, cid, clientCrt);
-    	
-    	// verify sig
-    	boolean isCorrectlySigned = false;
-    	try {
-        	// remove 64 encoding
-        	byte[] signatureBytes = Base64.getDecoder().decode(signature.getBytes("UTF-8"));
-    		isCorrectlySigned = verifyClientSignature(contract, clientCrt, signatureBytes);
-    		
-    		if (isCorrectlySigned) {
-    			
-    			// call sign fn
-    			ChaincodeResult cr = verifyAndExecuteContract(
-    				entityType,
-					Dispatcher.CHAINCODE_INVOKE_OPERATION, 
-        			channel, 
-        			cid,
-        			"signContract", 
-        			clientCrt,
-        			new String[] {
-    					signature
-        			}
-    			);
-    			
-    			// save to db
-    			if (cr.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS) {
-    				contract.sign(signature);
-    				saveRawContractToDB(channel, cid, contract);
-    			}
-    			return true;
-    		}
-    		
-		} catch (InvalidKeyException | NoSuchAlgorithmException | SignatureException | UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
-    	
-
-    	
-		return false;
+		return loadContract(entityType, channel, cid, clientCrt).thenCompose(contract -> {
+	    	
+	    	// verify sig
+	    	boolean isCorrectlySigned = false;
+	    	try {
+	        	// remove 64 encoding
+	        	byte[] signatureBytes = Base64.getDecoder().decode(signature.getBytes("UTF-8"));
+	    		isCorrectlySigned = verifyClientSignature(contract, clientCrt, signatureBytes);
+			} catch (InvalidKeyException | NoSuchAlgorithmException | SignatureException | UnsupportedEncodingException e) {
+				e.printStackTrace();
+			}
+	    	
+	    	if (!isCorrectlySigned) {
+	    		return CompletableFuture.completedFuture(false);
+	    	}
+	    	
+			// call sign fn
+	    	CompletableFuture<ChaincodeResult> pendingResult = verifyAndExecuteContract(
+				entityType,
+				Dispatcher.CHAINCODE_INVOKE_OPERATION, 
+				channel, 
+				cid,
+				contract,
+				"signContract", 
+				clientCrt,
+				new String[] {
+					signature
+				}
+			);
+	    	
+			return pendingResult.thenCompose(cr -> {
+				// save to db, the signed copy replaces the cached contract
+				if (cr.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS) {
+					CompletableFuture<Void> saved = saveRawContractToDB(channel, cid, contract.withSignature(signature));
+					if (ackOnSign) {
+						contractStore.flushQueued();
+						return saved.thenApply(v -> true);
+					}
+				}
+				return CompletableFuture.completedFuture(true);
+			});
+		});
 	}
 	
 	private boolean verifyClientSignature(Contract contract, X509Certificate signerCrt, byte[] signature) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
 		
-		// produce an hash of the contract
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-		md.update(contract.getRawRepresentation().getBytes());
-		byte[] contractHashBytes = Base64.getEncoder().encode(md.digest());
-		
-    	Signature sig = Signature.getInstance(signerCrt.getSigAlgName());
-		sig.initVerify(signerCrt.getPublicKey());
-		
-    	sig.update(contractHashBytes, 0, contractHashBytes.length);
-    	return sig.verify(signature);
+		// the hash of the contract is what the client signed
+		byte[] contractHashBytes = contract.getDigest().getBytes();
+    	return clientKeys.verify(signerCrt, contractHashBytes, signature);
 	}
 	
 	
@@ -259,145 +466,299 @@ public class ContractInterpreter {
 	 * Main method to execute a contract function. It verifies the contract specification beforehand
 	 * To be called when contract object is not available
 	 */
-	public ChaincodeResult verifyAndExecuteContract(EntityType entityType, int op, String channelName, String cid, String function, X509Certificate clientCrt, String[] args) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException, NonConformantContractException, InvalidContractPropertyException {
+	public CompletableFuture<ChaincodeResult> verifyAndExecuteContract(EntityType entityType, int op, String channelName, String cid, String function, X509Certificate clientCrt, String[] args) {
 		// get the contract and then verify and execute the function
-		Contract cc = getContract(entityType, channelName, cid, clientCrt);
-		return verifyAndExecuteContract(entityType, op, channelName, cid, cc, function, clientCrt, args);
+		return loadContract(entityType, channelName, cid, clientCrt).thenCompose(cc -> verifyAndExecuteContract(entityType, op, channelName, cid, cc, function, clientCrt, args));
 	}
 	
 	/**
 	 * Main method to execute a contract function. It verifies the contract specification beforehand
 	 * To be called when contract object is available
 	 */
-	public ChaincodeResult verifyAndExecuteContract(EntityType entityType, int op, String channelName, String cid, Contract cc, String function, X509Certificate clientCrt, String[] args) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException, InvalidContractPropertyException {
-		
-		
-		String verificationKey = channelName + "." + cid;
+	public CompletableFuture<ChaincodeResult> verifyAndExecuteContract(EntityType entityType, int op, String channelName, String cid, Contract cc, String function, X509Certificate clientCrt, String[] args) {
 		
 		// check if contract conforms to standard
-		if (!verifiedContracts.contains(verificationKey)) {
+		return getVerification(channelName, cid, cc).thenCompose(verified -> {
 			
-			// check if it conforms to the known format
-			if (!cc.conformsToStandard())
-				throw new InvalidContractPropertyException("Contract format is unrecognized");
-			
-			Contract extProps = cc.getExtendedContractProperties();
-			
-			
-			// check contract validity
+			// check contract validity, kept up to date by the validity scheduler
 			try {
-				String expireSpec = extProps.getContractStringAttr("expires-on").replace("T", " ");
-				String validFromSpec = extProps.getContractStringAttr("valid-from").replace("T", " ");
-				Format formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-				Date expiresOn = (Date) formatter.parseObject(expireSpec);
-				Date validFrom = (Date) formatter.parseObject(validFromSpec);
+				checkValidity(verified.getState());
+			} catch (InvalidContractPropertyException e) {
+				throw new CompletionException(e);
+			}
+
+			// execute fn
+			return executeContract(entityType, op, channelName, cid, function, clientCrt, args);
+		});
+	}
+	
+	/**
+	 * Gets the contract's verification, verifying and setting it up the first time it's seen.
+	 * Only one verification runs per contract, concurrent callers share its outcome
+	 */
+	private CompletableFuture<VerifiedContract> getVerification(String channelName, String cid, Contract cc) {
+		
+		String verificationKey = channelName + "." + cid;
+		VerifiedContract verified = verifiedContracts.get(verificationKey);
+		if (verified != null)
+			return CompletableFuture.completedFuture(verified);
+		
+		CompletableFuture<VerifiedContract> verification = new CompletableFuture<VerifiedContract>();
+		CompletableFuture<VerifiedContract> running = verifications.computeIfAbsent(verificationKey, k -> verification);
+		if (running != verification) {
+			// a restore that didn't make it (null) leaves the contract to be verified from scratch
+			return running.thenCompose(v -> v != null ? CompletableFuture.completedFuture(v) : getVerification(channelName, cid, cc));
+		}
+		
+		try {
+			// a verification that just finished may have beaten us to it
+			verified = verifiedContracts.get(verificationKey);
+			if (verified == null) {
+				verified = verifyContract(channelName, cid, cc);
 				
-				if (new Date().compareTo(expiresOn) >= 0) {
-					throw new InvalidContractPropertyException("Contract has expired");
-				}
+				// only contracts within their validity are set up, and published once they are
+				checkValidity(verified.stateAt(System.currentTimeMillis()));
+				activateContract(verified);
+				validityScheduler.register(verified);
+				verifiedContracts.put(verificationKey, verified);
 				
-				if (new Date().compareTo(validFrom) < 0) {
-					throw new InvalidContractPropertyException("Contract validity is yet to start");
-				}
-			} catch (ParseException e) {
-				e.printStackTrace();
+				// remember it across restarts
+				saveVerificationToDB(verified);
 			}
+			verifications.remove(verificationKey, verification);
+			verification.complete(verified);
+		} catch (Exception e) {
+			verifications.remove(verificationKey, verification);
+			verification.completeExceptionally(e);
+		}
+		return verification;
+	}
+	
+	private static void checkValidity(int state) throws InvalidContractPropertyException {
+		switch (state) {
+			case VerifiedContract.STATE_EXPIRED:
+				throw new InvalidContractPropertyException("Contract has expired");
+			case VerifiedContract.STATE_PENDING:
+				throw new InvalidContractPropertyException("Contract validity is yet to start");
+		}
+	}
+	
+	/**
+	 * Checks the contract specification and extracts what is needed to run it
+	 */
+	@SuppressWarnings("unchecked")
+	private VerifiedContract verifyContract(String channelName, String cid, Contract cc) throws InvalidContractPropertyException {
+		
+		// check if it conforms to the known format
+		if (!cc.conformsToStandard())
+			throw new InvalidContractPropertyException("Contract format is unrecognized");
+		
+		Contract extProps = cc.getExtendedContractProperties();
+		
+		
+		// compile contract validity into epoch bounds, checked on every call by the validity scheduler's flag
+		long expiresOnMillis = parseContractDate("expires-on", extProps.getContractStringAttr("expires-on"));
+		long validFromMillis = parseContractDate("valid-from", extProps.getContractStringAttr("valid-from"));
+		
+		// check signature type
+		String sigMethodSpec = extProps.getContractStringAttr("signature-type");
+		if (sigMethodSpec == null || sigMethodSpec.isEmpty()) {
+			// NOTE: redundant and possibly non-reachable. it's here for completeness.
+			// signature will fail in the HLF's ESCC before we get here
+			throw new InvalidContractPropertyException("No signature type on contract");
+		}
+		if (!CONTRACT_SIGNATURE_TYPES.contains(sigMethodSpec.trim())) {
+			// NOTE: redundant and possibly non-reachable. it's here for completeness.
+			// signature verification will fail in the SDK before we get here
+			throw new InvalidContractPropertyException("Unknown signature type on contract (known are 'multisig' and 'threshsig')");
+		}
+		
+	
+		List<Map<String, ?>> signingNodes = (List<Map<String, ?>>) extProps.getContractListAttr("signing-nodes");
+		List<Map<String, ?>> consensusNodes = (List<Map<String, ?>>) extProps.getContractListAttr("consensus-nodes");
+		List<NodeConnection> nodesForContract = new ArrayList<NodeConnection>(signingNodes.size() + consensusNodes.size());
+		
+		// get contract signing nodes
+		for (Map<String, ?> nodeConnectionSpec : signingNodes) {
 			
-			// check signature type
-			String sigMethodSpec = extProps.getContractStringAttr("signature-type");
-			if (sigMethodSpec == null || sigMethodSpec.isEmpty()) {
-				// NOTE: redundant and possibly non-reachable. it's here for completeness.
-				// signature will fail in the HLF's ESCC before we get here
-				throw new InvalidContractPropertyException("No signature type on contract");
-			}
-			if (!CONTRACT_SIGNATURE_TYPES.contains(sigMethodSpec.trim())) {
-				// NOTE: redundant and possibly non-reachable. it's here for completeness.
-				// signature verification will fail in the SDK before we get here
-				throw new InvalidContractPropertyException("Unknown signature type on contract (known are 'multisig' and 'threshsig')");
-			}
+			String nodeName = (String) nodeConnectionSpec.get("name");
+			String nodeDomain = nodeName.substring(nodeName.indexOf(".")+1);
+			nodesForContract.add(new NodeConnection(
+				NodeConnection.PEER_TYPE,
+				(String) nodeConnectionSpec.get("name"),
+				(String) nodeConnectionSpec.get("host"),
+				(int) nodeConnectionSpec.get("port"),
+				(int) nodeConnectionSpec.get("event-hub-port"),
+				trustedCaPath + "/tlsca." + nodeDomain + "-cert.pem"
+			));
+		}
+		
+		// get contract consensus nodes
+		for (Map<String, ?> nodeConnectionSpec : consensusNodes) {
 			
+			String nodeName = (String) nodeConnectionSpec.get("name");
+			String nodeDomain = nodeName.substring(nodeName.indexOf(".")+1);
+			nodesForContract.add(new NodeConnection(
+				NodeConnection.ORDERER_TYPE,
+				(String) nodeConnectionSpec.get("name"),
+				(String) nodeConnectionSpec.get("host"),
+				(int) nodeConnectionSpec.get("port"),
+				-1,
+				trustedCaPath + "/tlsca." + nodeDomain + "-cert.pem"
+			));
+		}
+		
+		return new VerifiedContract(
+				channelName, 
+				cid, 
+				sigMethodSpec.trim(), 
+				nodesForContract.toArray(new NodeConnection[nodesForContract.size()]), 
+				validFromMillis, 
+				expiresOnMillis,
+				compilePolicies(extProps, sigMethodSpec.trim(), nodesForContract.toArray(new NodeConnection[nodesForContract.size()]))
+		);
+	}
+	
+	// a contract whose validity can't be read is invalid, not valid forever
+	private static long parseContractDate(String attr, String spec) throws InvalidContractPropertyException {
+		if (spec == null)
+			throw new InvalidContractPropertyException("No '" + attr + "' date on contract");
+		try {
+			// anything after the seconds (millis, zone) is ignored, in local time, as it always was
+			TemporalAccessor parsed = CONTRACT_DATE_FORMAT.parse(spec.trim().replace("T", " "), new ParsePosition(0));
+			return LocalDateTime.from(parsed)
+					.atZone(ZoneId.systemDefault())
+					.toInstant()
+					.toEpochMilli();
+		} catch (DateTimeException e) {
+			throw new InvalidContractPropertyException("Unreadable '" + attr + "' date on contract: " + spec);
+		}
+	}
+	
+	/**
+	 * Sets the dispatcher up to run a verified contract
+	 */
+	private void activateContract(VerifiedContract verified) throws InvalidArgumentException, InvalidContractPropertyException, TransactionException, CryptoException {
+		
+		String channelName = verified.getChannel();
+		String cid = verified.getContractId();
+		
+		// update channel with signing and orderer nodes (i.e. stop using bootstrap nodes for signing)
+		dpt.updateChannelForContract(
+				channelName, 
+				cid, 
+				verified.getSignatureType(),
+				verified.getNodes()
+		);
+		
+		applyContractPolicies(channelName, cid, verified.getPolicies());
+	}
+	
+	/**
+	 * Reads the contract's optional call policies from its extended properties
+	 */
+	private ContractPolicies compilePolicies(Contract extProps, String signatureType, NodeConnection[] nodes) throws InvalidContractPropertyException {
 		
-			List<Map<String, ?>> signingNodes = (List<Map<String, ?>>) extProps.getContractListAttr("signing-nodes");
-			List<Map<String, ?>> consensusNodes = (List<Map<String, ?>>) extProps.getContractListAttr("consensus-nodes");
-			List<NodeConnection> nodesForContract = new ArrayList<NodeConnection>(signingNodes.size() + consensusNodes.size());
+		// query routing, if the contract has its own (checked here, so a bad spec fails verification)
+		String queryRouting = null;
+		int queryRoutingPeers = extProps.hasContractAttr("query-routing-peers") ? extProps.getContractIntAttr("query-routing-peers") : 1;
+		if (extProps.hasContractAttr("query-routing")) {
+			queryRouting = extProps.getContractStringAttr("query-routing");
+			QueryRouter.Mode mode = QueryRouter.Mode.fromSpec(queryRouting);
 			
-			// get contract signing nodes
-			for (Map<String, ?> nodeConnectionSpec : signingNodes) {
-				
-				String nodeName = (String) nodeConnectionSpec.get("name");
-				String nodeDomain = nodeName.substring(nodeName.indexOf(".")+1);
-				nodesForContract.add(new NodeConnection(
-					NodeConnection.PEER_TYPE,
-					(String) nodeConnectionSpec.get("name"),
-					(String) nodeConnectionSpec.get("host"),
-					(int) nodeConnectionSpec.get("port"),
-					(int) nodeConnectionSpec.get("event-hub-port"),
-					trustedCaPath + "/tlsca." + nodeDomain + "-cert.pem"
-				));
+			// routing only picks which peers answer, so it has to ask at least as many as the signature type needs
+			int signers = 0;
+			for (NodeConnection node : nodes) {
+				if (node.type == NodeConnection.PEER_TYPE)
+					signers++;
 			}
-			
-			// get contract consensus nodes
-			for (Map<String, ?> nodeConnectionSpec : consensusNodes) {
-				
-				String nodeName = (String) nodeConnectionSpec.get("name");
-				String nodeDomain = nodeName.substring(nodeName.indexOf(".")+1);
-				nodesForContract.add(new NodeConnection(
-					NodeConnection.ORDERER_TYPE,
-					(String) nodeConnectionSpec.get("name"),
-					(String) nodeConnectionSpec.get("host"),
-					(int) nodeConnectionSpec.get("port"),
-					-1,
-					trustedCaPath + "/tlsca." + nodeDomain + "-cert.pem"
-				));
+			int required = dpt.getRequiredEndorsements(signatureType, signers);
+			int routed = new QueryRouter.Policy(mode, queryRoutingPeers).getPeers();
+			if (mode != QueryRouter.Mode.ALL && routed < required) {
+				throw new InvalidContractPropertyException("Query routing '" + queryRouting.trim() + "' asks " + routed 
+						+ " peers, but the contract's " + signatureType + " signatures need " + required);
 			}
-			
-			// update channel with signing and orderer nodes (i.e. stop using bootstrap nodes for signing)
-			try {
-				dpt.updateChannelForContract(
-						channelName, 
-						cid, 
-						nodesForContract.toArray(new NodeConnection[nodesForContract.size()])
-				);
-			} catch (TransactionException e) {
-				e.printStackTrace();
+		}
+		
+		// invokes on the same state key (made of these indices into the function's arguments) are run one at a time
+		int[] keyArgs = null;
+		if (extProps.hasContractAttr("sequencing-keys")) {
+			List<?> keyArgList = extProps.getContractListAttr("sequencing-keys");
+			keyArgs = new int[keyArgList.size()];
+			for (int i = 0; i < keyArgs.length; i++) {
+				if (!(keyArgList.get(i) instanceof Integer) || (int) keyArgList.get(i) < 0) {
+					throw new InvalidContractPropertyException("Sequencing keys on contract must be argument indices");
+				}
+				keyArgs[i] = (int) keyArgList.get(i);
 			}
-			
-			verifiedContracts.add(verificationKey); // set contract as validated
-			
 		}
-
-		// execute fn
-		return executeContract(entityType, op, channelName, cid, function, clientCrt, args);
+		
+		// invokes of batch capable functions are coalesced and sent to the contract's batch entry point
+		Set<String> batchFunctions = null;
+		if (extProps.hasContractAttr("batch-functions")) {
+			if (!extProps.hasContractAttr("batch-entry-point")) {
+				throw new InvalidContractPropertyException("Batch functions on contract need a batch entry point");
+			}
+			batchFunctions = new HashSet<String>();
+			for (Object fn : extProps.getContractListAttr("batch-functions")) {
+				batchFunctions.add(String.valueOf(fn));
+			}
+		}
+		
+		// contracts whose queries must always reach the peers can opt out of the query cache
+		boolean queryCache = !extProps.hasContractAttr("query-cache") || extProps.getContractBoolAttr("query-cache");
+		
+		return new ContractPolicies(
+				queryRouting, 
+				queryRoutingPeers, 
+				keyArgs, 
+				batchFunctions, 
+				extProps.getContractStringAttr("batch-entry-point"), 
+				queryCache
+		);
 	}
 	
 	/**
-	 * Final contract execution method. After contract spec has been verified
+	 * Hands the contract's optional call policies to the dispatcher
 	 */
-	private ChaincodeResult executeContract(EntityType entityType, int op, String channelName, String cid, String function, X509Certificate clientCrt, String[] args) throws ProposalException, InvalidArgumentException, ExecutionException, TimeoutException {
+	private void applyContractPolicies(String channelName, String cid, ContractPolicies policies) throws InvalidContractPropertyException {
 		
-		try {
-
-			if (entityType == EntityType.ENTITY_TYPE_USER) {
-				byte[] pubKey = Base64.getEncoder().encode(clientCrt.getPublicKey().getEncoded());
-	
-				// put signature on first argument!
-				args = ArrayUtils.insert(0, args, new String(pubKey));
-			} else {
-				// add an empty value where the public key should be
-				args = ArrayUtils.insert(0, args, "");
-			}
-			
-			return dpt.callChaincodeFunction(
-					op, 
-					channelName,
+		if (policies.getQueryRouting() != null) {
+			dpt.setQueryRoutingPolicy(
+					channelName, 
 					cid, 
-					function, 
-					args
+					new QueryRouter.Policy(QueryRouter.Mode.fromSpec(policies.getQueryRouting()), policies.getQueryRoutingPeers())
 			);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
 		}
-		return null;
+		dpt.setInvokeSequencing(channelName, cid, policies.getSequencingKeys());
+		dpt.setInvokeBatching(
+				channelName, 
+				cid, 
+				policies.getBatchFunctions() == null ? null : new InvokeBatcher.Policy(policies.getBatchFunctions(), policies.getBatchEntryPoint())
+		);
+		dpt.setQueryCaching(channelName, cid, policies.isQueryCache());
+	}
+	
+	/**
+	 * Final contract execution method. After contract spec has been verified
+	 */
+	private CompletableFuture<ChaincodeResult> executeContract(EntityType entityType, int op, String channelName, String cid, String function, X509Certificate clientCrt, String[] args) {
+
+		if (entityType == EntityType.ENTITY_TYPE_USER) {
+			// put signature on first argument!
+			args = ArrayUtils.insert(0, args, clientKeys.getEncodedPublicKey(clientCrt));
+		} else {
+			// add an empty value where the public key should be
+			args = ArrayUtils.insert(0, args, "");
+		}
+		
+		return dpt.callChaincodeFunction(
+				op, 
+				channelName,
+				cid, 
+				function, 
+				args
+		);
 	}
 
 }
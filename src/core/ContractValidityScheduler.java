@@ -0,0 +1,78 @@
+package core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import core.dto.VerifiedContract;
+
+/**
+ * Flips verified contracts to active and to expired exactly at their validity bounds, so the request path
+ * only has to read the contract's state. Bounds are kept in the executor's time-ordered queue.
+ */
+public class ContractValidityScheduler {
+
+    private static final Logger log = Logger.getLogger(ContractValidityScheduler.class);
+
+	private ScheduledExecutorService timer;
+	private Map<VerifiedContract, List<ScheduledFuture<?>>> flips; // still ahead, per registered contract
+
+	public ContractValidityScheduler() {
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+		this.flips = new ConcurrentHashMap<VerifiedContract, List<ScheduledFuture<?>>>();
+	}
+
+	/**
+	 * Sets the contract's current state and schedules its flips at the bounds still ahead
+	 */
+	public void register(VerifiedContract contract) {
+
+		long now = System.currentTimeMillis();
+		contract.setState(contract.stateAt(now));
+
+		if (contract.getValidFrom() > now && contract.getValidFrom() < contract.getExpiresOn()) {
+			schedule(contract, contract.getValidFrom(), now);
+		}
+		if (contract.getExpiresOn() > now) {
+			schedule(contract, contract.getExpiresOn(), now);
+		}
+	}
+
+	/**
+	 * Cancels the flips still ahead of a contract that is no longer used
+	 */
+	public void unregister(VerifiedContract contract) {
+		List<ScheduledFuture<?>> pending = flips.remove(contract);
+		if (pending != null) {
+			for (ScheduledFuture<?> flip : pending) {
+				flip.cancel(false);
+			}
+		}
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private void schedule(VerifiedContract contract, long bound, long now) {
+		ScheduledFuture<?> flip = timer.schedule(() -> {
+			// evaluated at the bound, so a late timer can't flip it back
+			int state = contract.stateAt(Math.max(bound, System.currentTimeMillis()));
+			contract.setState(state);
+			log.info("Contract " + contract.getChannel() + "." + contract.getContractId() + " is now "
+					+ (state == VerifiedContract.STATE_ACTIVE ? "active" : "expired"));
+			// the expiry is the last flip
+			if (state == VerifiedContract.STATE_EXPIRED)
+				flips.remove(contract);
+		}, bound - now, TimeUnit.MILLISECONDS);
+		flips.computeIfAbsent(contract, c -> new CopyOnWriteArrayList<ScheduledFuture<?>>()).add(flip);
+	}
+
+}
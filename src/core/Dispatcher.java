@@ -1,27 +1,33 @@
 package core;
 
-import java.io.File;
-import java.nio.file.Paths;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
 import org.hyperledger.fabric.sdk.ChaincodeID;
 import org.hyperledger.fabric.sdk.Channel;
-import org.hyperledger.fabric.sdk.EventHub;
 import org.hyperledger.fabric.sdk.HFClient;
-import org.hyperledger.fabric.sdk.Orderer;
 import org.hyperledger.fabric.sdk.Peer;
 import org.hyperledger.fabric.sdk.ProposalResponse;
 import org.hyperledger.fabric.sdk.QueryByChaincodeRequest;
@@ -34,8 +40,11 @@ import org.hyperledger.fabric.sdk.security.CryptoSuite;
 
 import com.google.protobuf.ByteString;
 
+import fgodinho.threshsig.GroupKey;
+
 import core.dto.ChaincodeResult;
 import core.dto.HLFUser;
+import core.exception.EndorsementException;
 import util.NodeConnection;
 
 public class Dispatcher {
@@ -48,9 +57,35 @@ public class Dispatcher {
     private static final Logger log = Logger.getLogger(Dispatcher.class);
     
     private HFClient client;
-    private ConcurrentMap<String, Collection<Peer>> signers; // per contract
-    private ConcurrentMap<String, Collection<Orderer>> orderers; // per contract
+    private ConcurrentMap<String, ChannelView> bootstrapChannels; // per channel name, created on first use
+    private ConcurrentMap<String, CompletableFuture<ChannelView>> channelInits; // in flight, per channel name
+    private ConcurrentMap<String, Long> channelLastUsed; // per channel name
+    private ConcurrentMap<String, Long> channelFailures; // per channel name that couldn't be created, when it last failed
+    private NodeConnection[] bootstrapNodes;
+    private String configChannelName; // never evicted
+    private ConcurrentMap<String, ChannelView> contractChannels; // per contract
+    private ConcurrentMap<String, String> contractSignatureTypes; // per contract
+    private ConcurrentMap<String, QueryRouter.Policy> contractRoutingPolicies; // per contract
+    private QueryRouter.Policy defaultRoutingPolicy;
+    private PeerStats peerStats;
+    private NodeHealth nodeHealth; // breakers and adaptive timeouts of peers and orderers
+    private TransactionBroadcaster broadcaster; // failover or hedged ordering
+    private InvokeSequencer invokeSequencer;
+    private ConcurrentMap<String, int[]> contractSequencingKeys; // per contract, argument indices of the state key
+    private InvokeBatcher invokeBatcher;
+    private ConcurrentMap<String, InvokeBatcher.Policy> contractBatchingPolicies; // per contract
+    private QueryRouter queryRouter;
+    private QueryCache queryCache; // null when disabled
+    private Set<String> uncachedContracts; // contracts that opted out of the query cache
+    private List<BlockListener> blockListeners; // fed by the event hub of each bootstrap channel
+    private NodeConnectionPool connectionPool;
+    private ClientShards clientShards; // crypto suites the channels are spread over
     private Configuration cfg;
+    private ExecutorService proposalExecutor; // runs the blocking proposal phase of every call
+    private ExecutorService endorsementExecutor; // runs proposals sent to individual peers
+    private EndorsementVerifier endorsementVerifier; // checks endorsements against the contract's signing nodes, on its own pool
+    private boolean quorumCollection; // complete calls as soon as a quorum of peers endorses them
+    private ScheduledExecutorService retiredChannelExecutor; // shuts down replaced contract channels
     
     public Dispatcher(Configuration cfg, NodeConnection[] bootstrapNodes) throws Exception {
     	
@@ -65,6 +100,10 @@ public class Dispatcher {
         	cfg.getString("hlf.client.org")
          );
         log.info(appUser);
+        if (cfg.getBoolean("hlf.client.watchCredentials")) {
+        	// pick up rotated credentials without a restart
+        	appUser.watchCredentials();
+        }
        
         // get HFC client instance
         client = getHfClient();
@@ -73,203 +112,366 @@ public class Dispatcher {
         // set threshsig group key for when needed
         client.getCryptoSuite().setThreshSigGroupKey(cfg.getString("crypto.threshsig.groupKey").getBytes());
         
-        // init contract nodes maps
-        signers = new ConcurrentHashMap<String, Collection<Peer>>();
-        orderers = new ConcurrentHashMap<String, Collection<Orderer>>();
+        // init proposal executor
+        proposalExecutor = Executors.newFixedThreadPool(cfg.getInt("hlf.dispatcher.threadPool"));
+        retiredChannelExecutor = Executors.newSingleThreadScheduledExecutor();
+        endorsementExecutor = Executors.newFixedThreadPool(cfg.getInt("hlf.endorsement.threadPool"));
+        quorumCollection = "quorum".equals(cfg.getString("hlf.endorsement.collectionMode"));
+        endorsementVerifier = new EndorsementVerifier(cfg);
+        
+        // init client shards and node connection pool
+        clientShards = new ClientShards(cfg, client);
+        connectionPool = new NodeConnectionPool(cfg, clientShards);
+        
+        // init channel registries
+        bootstrapChannels = new ConcurrentHashMap<String, ChannelView>();
+        channelInits = new ConcurrentHashMap<String, CompletableFuture<ChannelView>>();
+        channelLastUsed = new ConcurrentHashMap<String, Long>();
+        channelFailures = new ConcurrentHashMap<String, Long>();
+        this.bootstrapNodes = bootstrapNodes;
+        contractChannels = new ConcurrentHashMap<String, ChannelView>();
+        contractSignatureTypes = new ConcurrentHashMap<String, String>();
+        contractRoutingPolicies = new ConcurrentHashMap<String, QueryRouter.Policy>();
+        
+        // init node health tracking, open nodes are probed through the channels they are on
+        nodeHealth = new NodeHealth(cfg, this::probeNode);
+        broadcaster = new TransactionBroadcaster(cfg, nodeHealth, proposalExecutor);
+        
+        // init invoke sequencing, for the contracts that ask for it
+        invokeSequencer = new InvokeSequencer(cfg);
+        contractSequencingKeys = new ConcurrentHashMap<String, int[]>();
+        
+        // init invoke batching, for the contracts that ask for it
+        invokeBatcher = new InvokeBatcher(cfg);
+        contractBatchingPolicies = new ConcurrentHashMap<String, InvokeBatcher.Policy>();
+        
+        // init query routing
+        peerStats = new PeerStats();
+        queryRouter = new QueryRouter(peerStats);
+        defaultRoutingPolicy = new QueryRouter.Policy(
+    		QueryRouter.Mode.fromSpec(cfg.getString("hlf.query.routing")), 
+    		cfg.getInt("hlf.query.routing.peers")
+		);
+        
+        // init query cache, invalidated by the block events of each channel
+        if (cfg.getInt("hlf.query.cache.size") > 0) {
+        	queryCache = new QueryCache(cfg.getInt("hlf.query.cache.size"), cfg.getLong("hlf.query.cache.ttl"));
+        }
+        uncachedContracts = ConcurrentHashMap.newKeySet();
+        blockListeners = new CopyOnWriteArrayList<BlockListener>();
+        
+        // create the config channel, other channels are created on first use
+        configChannelName = cfg.getString("hlf.channelName");
+        bootstrapChannels.put(configChannelName, createChannel(client, configChannelName, bootstrapNodes));
         
-        // create the config channel
-        createChannel(
-    		cfg.getString("hlf.channelName"),
-    		bootstrapNodes
-        );
+        // close channels nobody used for a while
+        long idleTimeout = cfg.getLong("hlf.channels.idleTimeout");
+        if (idleTimeout < 2) {
+        	throw new ConfigurationException("hlf.channels.idleTimeout must be at least 2 ms, was " + idleTimeout);
+        }
+        retiredChannelExecutor.scheduleWithFixedDelay(this::evictIdleChannels, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
     }
     
     // use HLFJavaClient.CHAINCODE_QUERY_OPERATION or HLFJavaClient.CHAINCODE_INVOKE_OPERATION
-    public ChaincodeResult callChaincodeFunction(int op, String channelName, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) throws InterruptedException, ProposalException, InvalidArgumentException, ExecutionException, TimeoutException {
-    	
-    	ChaincodeResult cr = new ChaincodeResult(ChaincodeResult.CHAINCODE_FAILURE);
+    // the returned future completes once the query is answered or the transaction is committed,
+    // so callers never hold a thread while waiting on the network
+    public CompletableFuture<ChaincodeResult> callChaincodeFunction(int op, String channelName, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) throws IllegalArgumentException {
     	
-		// set correct channel
-		Channel channel = changeChannel(channelName);
+		// set correct channel (the contract's own, if it was verified already)
+		ChannelView view = getChannelView(channelName, chaincodeId);
+		int quorum = getQuorum(channelName, chaincodeId, view.getSigners().size());
     	
-    	try {
-    		// call corresponding chaincode operation
-    		switch (op) {
-    		
-	    		case CHAINCODE_QUERY_OPERATION:
-	    			cr = query(channel, chaincodeId, chaincodeFn, chaincodeArgs);
-	    			break;
-	    			
-	    		case CHAINCODE_INVOKE_OPERATION:
-	    			cr = invoke(channel, chaincodeId, chaincodeFn, chaincodeArgs);
-	    			break;
-	    			
-				default:
-	    			throw new IllegalArgumentException("Unrecognized operation: " + op);
-    		}
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} finally {
-//			Thread.sleep(cfg.getLong("hlf.chaincode.callInterval"));
+		// call corresponding chaincode operation
+		switch (op) {
+		
+    		case CHAINCODE_QUERY_OPERATION:
+    			QueryRouter.Policy routing = getQueryRoutingPolicy(channelName, chaincodeId);
+    			if (queryCache == null || uncachedContracts.contains(channelName + "." + chaincodeId)) {
+    				return query(view, quorum, routing, chaincodeId, chaincodeFn, chaincodeArgs);
+    			}
+    			return queryCache.get(channelName, chaincodeId, chaincodeFn, chaincodeArgs, 
+    					() -> query(view, quorum, routing, chaincodeId, chaincodeFn, chaincodeArgs));
+    			
+    		case CHAINCODE_INVOKE_OPERATION:
+    			// endorsement is done on the proposal executor, commit is awaited asynchronously.
+    			// the channel is resolved when it's sent, a queued invoke may outlive the one seen here
+    			Supplier<CompletableFuture<ChaincodeResult>> send = () -> sendInvoke(channelName, chaincodeId, chaincodeFn, chaincodeArgs);
+    			
+    			// batch capable functions are coalesced into one transaction to the contract's batch entry point,
+    			// contracts that declare their state key have invokes on the same key run one at a time
+    			InvokeBatcher.Policy batching = contractBatchingPolicies.get(channelName + "." + chaincodeId);
+    			int[] keyArgs = contractSequencingKeys.get(channelName + "." + chaincodeId);
+    			CompletableFuture<ChaincodeResult> result;
+    			if (batching != null && batching.isBatched(chaincodeFn)) {
+    				result = invokeBatcher.submit(
+						channelName + "." + chaincodeId + "." + chaincodeFn, 
+						batching.getEntryPoint(), 
+						chaincodeFn, 
+						chaincodeArgs, 
+						(fn, args) -> sendInvoke(channelName, chaincodeId, fn, args)
+					);
+    			} else if (keyArgs != null) {
+    				result = invokeSequencer.submit(getStateKey(channelName, chaincodeId, keyArgs, chaincodeArgs), send);
+    			} else {
+    				result = send.get();
+    			}
+    			if (queryCache != null) {
+    				// our own writes are visible right away, without waiting for the block event
+    				result = result.whenComplete((rsp, t) -> queryCache.invalidate(channelName, chaincodeId));
+    			}
+    			return result;
+    			
+			default:
+    			throw new IllegalArgumentException("Unrecognized operation: " + op);
 		}
-    	
-    	return cr;
     }
     
-    public Channel changeChannel(String channelName) throws IllegalArgumentException {
+    /**
+     * Listens to the blocks committed on every bootstrap channel
+     */
+    public void addBlockListener(BlockListener listener) {
+    	blockListeners.add(listener);
+    }
+    
+    private ChannelView getChannelView(String channelName, String contractId) throws IllegalArgumentException {
     	
-    	Channel c = client.getChannel(channelName);
-    	if (c == null) {
-    		throw new IllegalArgumentException("No such channel exists: " + channelName);
+    	// check if there is a channel for contract (if there isn't, this is a first interaction)
+    	ChannelView view = contractChannels.get(channelName + "." + contractId);
+    	if (view != null) {
+    		return view;
     	}
     	
-    	// ret current channel
-    	return c;
-    	
+    	// there is not. let us default to the bootstrap nodes on the channel
+    	return getBootstrapChannel(channelName);
     }
     
-    public void updateChannelForContract(String channelName, String contractId, NodeConnection[] newNodesOnChannel) throws InvalidArgumentException, TransactionException {
+    /**
+     * Channel over the bootstrap nodes, created on its first use. Concurrent first uses wait for a single creation,
+     * and a name that couldn't be created is turned down without asking the nodes again for a while
+     */
+    private ChannelView getBootstrapChannel(String channelName) throws IllegalArgumentException {
     	
-    	// get channel to update and its nodes
-    	Channel oldChannel = client.getChannel(channelName);
-    	Collection<Peer> existingPeers = oldChannel.getPeers();
-    	Collection<Orderer> existingOrderers = oldChannel.getOrderers();
-    	// remove it
-    	client.removeChannel(oldChannel); // don't ask, it works and preserves old nodes
+    	ChannelView view = bootstrapChannels.get(channelName);
+    	if (view == null) {
+    		Long failedAt = channelFailures.get(channelName);
+    		if (failedAt != null && System.currentTimeMillis() - failedAt < cfg.getLong("hlf.channels.retryInterval")) {
+    			throw new IllegalArgumentException("No such channel exists: " + channelName);
+    		}
+    		
+    		CompletableFuture<ChannelView> init = new CompletableFuture<ChannelView>();
+    		CompletableFuture<ChannelView> running = channelInits.putIfAbsent(channelName, init);
+    		if (running == null) {
+    			try {
+    				// may have been published since our first look
+    				view = bootstrapChannels.get(channelName);
+    				if (view == null) {
+    					log.info("Creating channel " + channelName + "...");
+    					view = createChannel(clientShards.newClient(channelName), channelName, bootstrapNodes);
+    					bootstrapChannels.put(channelName, view);
+    					channelFailures.remove(channelName);
+    				}
+    				init.complete(view);
+    			} catch (InvalidArgumentException | TransactionException | CryptoException | RuntimeException e) {
+    				// not cached, a call after the retry interval tries again
+    				recordChannelFailure(channelName);
+    				init.completeExceptionally(e);
+    			} finally {
+    				channelInits.remove(channelName, init);
+    			}
+    			running = init;
+    		}
+    		try {
+    			view = running.join();
+    		} catch (CompletionException e) {
+    			throw new IllegalArgumentException("No such channel exists: " + channelName, e.getCause());
+    		}
+    	}
+    	channelLastUsed.put(channelName, System.currentTimeMillis());
+    	return view;
+    }
+    
+    private void recordChannelFailure(String channelName) {
     	
-    	// clear any old refs to signers and orderers we might have
-    	signers.remove(contractId);
-    	orderers.remove(contractId);
-
-		// create channel and add nodes nodes
-    	Channel channel = client.newChannel(channelName);
+    	// past failures are only kept while they hold their name back, so unknown names don't pile up
+    	long now = System.currentTimeMillis();
+    	long retryInterval = cfg.getLong("hlf.channels.retryInterval");
+    	channelFailures.values().removeIf(failedAt -> now - failedAt >= retryInterval);
+    	channelFailures.put(channelName, now);
+    }
+    
+    private void evictIdleChannels() {
     	
-    	// add new nodes
-    	for (int i = 0; i < newNodesOnChannel.length; i++) {
+    	long now = System.currentTimeMillis();
+    	for (String channelName : bootstrapChannels.keySet()) {
+    		Long lastUsed = channelLastUsed.get(channelName);
+    		if (channelName.equals(configChannelName) || (lastUsed != null && now - lastUsed < cfg.getLong("hlf.channels.idleTimeout")))
+    			continue;
+    		
+    		// its event hub feeds the contracts on it
+    		boolean hasContracts = contractChannels.values().stream()
+    				.anyMatch(view -> view.getChannel().getName().equals(channelName));
+    		if (hasContracts)
+    			continue;
     		
-    		File tlsCrt = Paths.get(newNodesOnChannel[i].tlsCrtPath).toFile();
-            
-            if (!tlsCrt.exists())
-            	throw new RuntimeException("Missing TLS cert files");
-            
-            Properties secPeerProperties = new Properties();
-            secPeerProperties.setProperty("hostnameOverride", newNodesOnChannel[i].name);
-            secPeerProperties.setProperty("sslProvider", cfg.getString("hlf.communication.sslProvider"));
-            secPeerProperties.setProperty("negotiationType", cfg.getString("hlf.communication.negotiationMode"));
-            secPeerProperties.setProperty("pemFile", tlsCrt.getAbsolutePath());
-            
-            if (newNodesOnChannel[i].type == NodeConnection.PEER_TYPE) {
-            	// peer name and endpoint in network
-	            Peer peer = client.newPeer(newNodesOnChannel[i].name, "grpcs://" + newNodesOnChannel[i].host + ":"  + newNodesOnChannel[i].port, secPeerProperties);
-	            channel.addPeer(peer);
-            } else if (newNodesOnChannel[i].type == NodeConnection.ORDERER_TYPE) {
-            	// orderer name and endpoint in network
-                Orderer orderer = client.newOrderer(newNodesOnChannel[i].name, "grpcs://" + newNodesOnChannel[i].host + ":"  + newNodesOnChannel[i].port, secPeerProperties);
-                channel.addOrderer(orderer);
-            }
+    		ChannelView idle = bootstrapChannels.remove(channelName);
+    		channelLastUsed.remove(channelName);
+    		if (idle != null) {
+    			log.info("Closing idle channel " + channelName);
+    			// calls that picked it up just before are allowed to finish
+    			retiredChannelExecutor.schedule(
+	    			idle::shutdown, 
+	    			cfg.getLong("hlf.proposal.timeout") + cfg.getLong("hlf.transaction.timeout"), 
+	    			TimeUnit.MILLISECONDS
+				);
+    		}
     	}
-
+    }
+    
+    public void updateChannelForContract(String channelName, String contractId, String signatureType, NodeConnection[] newNodesOnChannel) throws InvalidArgumentException, TransactionException, CryptoException {
     	
-    	// init channel, finally
-        channel.initialize();
+    	// the bootstrap channel's event hub feeds the contract, so it must be open
+    	getBootstrapChannel(channelName);
+    	
+		// lease a channel with the contract's signing and consensus nodes, 
+    	// other contracts on the same channel are left untouched and share it if they have the same nodes
+    	ChannelView view = connectionPool.lease(channelName, newNodesOnChannel);
+        
+        // signature type decides how many endorsements a call needs
+        contractSignatureTypes.put(channelName + "." + contractId, signatureType);
+        
+        // publish it, retiring any previous channel of the contract once its in-flight calls are done
+        ChannelView retired = contractChannels.put(channelName + "." + contractId, view);
+        if (retired != null && retired != view) {
+        	retiredChannelExecutor.schedule(
+    			() -> connectionPool.release(retired), 
+    			cfg.getLong("hlf.proposal.timeout") + cfg.getLong("hlf.transaction.timeout"), 
+    			TimeUnit.MILLISECONDS
+			);
+        } else if (retired == view) {
+        	// same nodes as before, drop the extra lease
+        	connectionPool.release(view);
+        }
     }
     
-    private void createChannel(String newChannelName, NodeConnection[] nodesOnChannel) throws InvalidArgumentException, TransactionException {
+    // each channel gets its own event hub, on its first peer
+    private ChannelView createChannel(HFClient client, String newChannelName, NodeConnection[] nodesOnChannel) throws InvalidArgumentException, TransactionException {
         	
 		// create channel and add nodes nodes
     	Channel channel = client.newChannel(newChannelName);
-    	
-    	for (int i = 0; i < nodesOnChannel.length; i++) {
-    		File tlsCrt = Paths.get(nodesOnChannel[i].tlsCrtPath).toFile();
-            
-            if (!tlsCrt.exists())
-            	throw new RuntimeException("Missing TLS cert files");
-            
-            Properties secPeerProperties = new Properties();
-            secPeerProperties.setProperty("hostnameOverride", nodesOnChannel[i].name);
-            secPeerProperties.setProperty("sslProvider", cfg.getString("hlf.communication.sslProvider"));
-            secPeerProperties.setProperty("negotiationType", cfg.getString("hlf.communication.negotiationMode"));
-            secPeerProperties.setProperty("pemFile", tlsCrt.getAbsolutePath());
-            
-            if (nodesOnChannel[i].type == NodeConnection.PEER_TYPE) {
-            	// peer name and endpoint in network
-	            Peer peer = client.newPeer(nodesOnChannel[i].name, "grpcs://" + nodesOnChannel[i].host + ":"  + nodesOnChannel[i].port, secPeerProperties);
-	            channel.addPeer(peer);
-	            if (i == 0) {
-	            	// eventhub on peer endpoints
-	            	EventHub eventHub = client.newEventHub("eventhub0" + i, "grpcs://" + nodesOnChannel[i].host + ":" + nodesOnChannel[i].eventHubPort, secPeerProperties);
-	            	channel.addEventHub(eventHub);
-	            }
-            } else if (nodesOnChannel[i].type == NodeConnection.ORDERER_TYPE) {
-            	// orderer name and endpoint in network
-                Orderer orderer = client.newOrderer(nodesOnChannel[i].name, "grpcs://" + nodesOnChannel[i].host + ":"  + nodesOnChannel[i].port, secPeerProperties);
-                channel.addOrderer(orderer);
-            }
+    	try {
+	    	connectionPool.addNodesToChannel(client, channel, nodesOnChannel, true);
+	    	
+	    	// init channel, finally
+	        channel.initialize();
+    	} catch (InvalidArgumentException | TransactionException | RuntimeException e) {
+    		// half built, its node connections would be left open
+    		channel.shutdown(true);
+    		throw e;
     	}
-    	
-    	// init channel, finally
-        channel.initialize();
+        
+        channel.registerBlockListener(block -> {
+        	if (queryCache != null) {
+        		queryCache.invalidate(block);
+        		log.debug(queryCache);
+        	}
+        	for (BlockListener listener : blockListeners) {
+        		listener.received(block);
+        	}
+        });
+        
+        return new ChannelView(client, channel, nodesOnChannel);
     }
 
-    private ChaincodeResult query(Channel channel, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) throws ProposalException, InvalidArgumentException, NoSuchAlgorithmException {
-    	
 
-    	Collection<ProposalResponse> successful = new LinkedList<ProposalResponse>();
-    	Collection<ProposalResponse> failed = new LinkedList<ProposalResponse>();
-        
-        // create chaincode request
-        QueryByChaincodeRequest qpr = client.newQueryProposalRequest();
-        
-        // build cc id providing the chaincode name. Version is omitted here.
-        ChaincodeID CCId = ChaincodeID.newBuilder().setName(chaincodeId).build();
-        qpr.setChaincodeID(CCId);
-        
-        // check if there are signers for contract (if there aren't, this is a first interaction)
-        Collection<Peer> signerNodes = signers.get(chaincodeId);
-        if (signerNodes == null || signerNodes.isEmpty()) {
-        	// there are not. let us default to the bootstrap nodes on the channel
-        	signerNodes = channel.getPeers();
+    private CompletableFuture<ChaincodeResult> query(ChannelView view, int quorum, QueryRouter.Policy routing, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) {
+    	
+    	clientShards.record(view.getClient());
+    	
+        // signers of the contract (or bootstrap nodes on a first interaction), minus those with an open breaker
+        Channel channel = view.getChannel();
+        Collection<Peer> signerNodes = getAvailablePeers(view.getSigners());
+        // routing picks which peers are asked, it never lowers the endorsements the contract needs
+        int required = routing.getMode() == QueryRouter.Mode.ALL ? quorum : Math.min(Math.max(quorum, routing.getPeers()), view.getSigners().size());
+        if (signerNodes.size() < required) {
+        	CompletableFuture<ChaincodeResult> unavailable = new CompletableFuture<ChaincodeResult>();
+        	unavailable.completeExceptionally(new RuntimeException("Too many peers are unavailable! Available: " + signerNodes.size() + " . Required: " + required));
+        	return unavailable;
         }
-        
-        // CC function to be called
-        qpr.setFcn(chaincodeFn);
-        qpr.setArgs(chaincodeArgs);
-        qpr.setProposalWaitTime(cfg.getLong("hlf.proposal.timeout"));
-        Collection<ProposalResponse> responses = channel.queryByChaincode(qpr, signerNodes);
 
         log.info("Sending query request, function '" + chaincodeFn + "' with arguments ['" + String.join("', '", chaincodeArgs) + "'], through chaincode '" + chaincodeId + "'...");
         
-        // parse responses
-        String responseString = null;
-        List<ByteString> signatureStrings = new ArrayList<ByteString>(responses.size());
-        for (ProposalResponse rsp : responses) {
-        	// if valid
-        	if (rsp.isVerified() && rsp.getStatus() == ProposalResponse.Status.SUCCESS) {
-        		responseString = rsp.getProposalResponse().getResponse().getPayload().toStringUtf8();
-        		signatureStrings.add(rsp.getProposalResponse().getEndorsement().getSignature());
-        		successful.add(rsp);
-        	} else {
-        		failed.add(rsp);
-        	}
-        }
-        
-        log.info("Received " + responses.size() + " query proposal responses. Successful: " + successful.size() + " . Failed: " + failed.size());
-        log.info("Signature verification is ok!");
+        // only endorsements that check out locally count towards the peers needed
+        String signatureType = getSignatureType(channel.getName(), chaincodeId);
+        EndorsementCollector.EndorsementCheck check = rsps -> endorsementVerifier.verify(view, signatureType, rsps);
         
-        // if we obtain a majority of faults => exit error
-        if (failed.size() >= successful.size()) {
-        	throw new RuntimeException("Too many peers failed the response!");
+        CompletableFuture<Collection<ProposalResponse>> pendingResponses;
+        if (routing.getMode() != QueryRouter.Mode.ALL) {
+        	// only as many peers as required are asked, picked by the contract's routing policy
+        	pendingResponses = queryRouter.route(
+    			signerNodes, 
+    			routing, 
+    			required,
+    			peer -> queryPeer(channel, peer, chaincodeId, chaincodeFn, chaincodeArgs),
+    			check,
+    			endorsementExecutor
+			);
+        } else if (quorumCollection) {
+        	// one proposal per peer, done as soon as the quorum answers
+        	pendingResponses = EndorsementCollector.collect(
+    			signerNodes, 
+    			quorum, 
+    			peer -> queryPeer(channel, peer, chaincodeId, chaincodeFn, chaincodeArgs),
+    			check,
+    			endorsementExecutor
+			);
+        } else {
+        	// one proposal to every peer, done when all of them answer
+        	pendingResponses = supplyOnProposalExecutor(() -> {
+        		Collection<Peer> calledNodes = acquirePeers(signerNodes);
+        		Collection<ProposalResponse> responses = channel.queryByChaincode(
+    				newQueryRequest(chaincodeId, chaincodeFn, chaincodeArgs, getProposalTimeout(calledNodes)), 
+    				calledNodes
+				);
+        		recordOutcomes(responses);
+        		return responses;
+        	});
         }
         
-        
-        return new ChaincodeResult(ChaincodeResult.CHAINCODE_SUCCESS, responseString, signatureStrings);
+        // verified again as a whole, the endorsements already checked are cached
+        return pendingResponses.thenCompose(responses -> check.endorsements(new ArrayList<ProposalResponse>(responses)).thenApply(verified -> {
+
+        	Collection<ProposalResponse> successful = new LinkedList<ProposalResponse>();
+        	Collection<ProposalResponse> failed = new LinkedList<ProposalResponse>();
+        	
+	        // parse responses
+	        String responseString = null;
+	        List<ByteString> signatureStrings = new ArrayList<ByteString>(responses.size());
+	        for (ProposalResponse rsp : responses) {
+	        	// if endorsed by a signing node of the contract, with a valid signature
+	        	if (verified.contains(rsp)) {
+	        		responseString = rsp.getProposalResponse().getResponse().getPayload().toStringUtf8();
+	        		signatureStrings.add(rsp.getProposalResponse().getEndorsement().getSignature());
+	        		successful.add(rsp);
+	        	} else {
+	        		failed.add(rsp);
+	        	}
+	        }
+	        
+	        log.info("Received " + responses.size() + " query proposal responses. Successful: " + successful.size() + " . Failed: " + failed.size());
+	        
+	        // if the contract's signature requirement isn't met => exit error
+	        if (successful.size() < quorum) {
+	        	throw new RuntimeException("Too many peers failed the response!");
+	        }
+	        log.info("Signature verification is ok!");
+	        
+	        return new ChaincodeResult(ChaincodeResult.CHAINCODE_SUCCESS, responseString, signatureStrings);
+        }));
     }
     
-    private ChaincodeResult invoke(Channel channel, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) throws ProposalException, InvalidArgumentException, InterruptedException, ExecutionException, TimeoutException {
+    private CompletableFuture<ChaincodeResult> invoke(ChannelView view, int quorum, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) throws ProposalException, InvalidArgumentException {
     	
-
-    	Collection<ProposalResponse> successful = new LinkedList<ProposalResponse>();
-    	Collection<ProposalResponse> failed = new LinkedList<ProposalResponse>();
+    	clientShards.record(view.getClient());
         
         // create chaincode request
         TransactionProposalRequest tpr = client.newTransactionProposalRequest();
@@ -277,53 +479,306 @@ public class Dispatcher {
         // build cc id providing the chaincode name. Version is omitted here.
         ChaincodeID CCId = ChaincodeID.newBuilder().setName(chaincodeId).build();
         
-        // check if there are signers for contract (if there aren't, this is a first interaction)
-        Collection<Peer> signerNodes = signers.get(chaincodeId);
-        if (signerNodes == null || signerNodes.isEmpty()) {
-        	// there are not. let us default to the bootstrap nodes on the channel
-        	signerNodes = channel.getPeers();
+        // signers of the contract (or bootstrap nodes on a first interaction), minus those with an open breaker, all of them are called
+        Channel channel = view.getChannel();
+        Collection<Peer> signerNodes = acquirePeers(getAvailablePeers(view.getSigners()));
+        if (signerNodes.size() < quorum) {
+        	throw new EndorsementException("Too many peers are unavailable! Available: " + signerNodes.size() + " . Required: " + quorum);
         }
 
         // CC function to be called
+        // NOTE: endorsements of one transaction must share its id, so the sdk has to send them in a single call
         tpr.setChaincodeID(CCId);
         tpr.setFcn(chaincodeFn);
         tpr.setArgs(chaincodeArgs);
-        tpr.setProposalWaitTime(cfg.getLong("hlf.proposal.timeout"));
+        tpr.setProposalWaitTime(getProposalTimeout(signerNodes));
         Collection<ProposalResponse> responses = channel.sendTransactionProposal(tpr, signerNodes);
+        recordOutcomes(responses);
         
         log.info("Sending transaction proposal, function '" + chaincodeFn + "' with arguments ['" + String.join("', '", chaincodeArgs) + "'], through chaincode '" + chaincodeId + "'...");
        
-        // parse responses
-        List<ByteString> signatureStrings = new ArrayList<ByteString>(responses.size());
-        for (ProposalResponse rsp : responses) {
-        	// if valid
-        	if (rsp.isVerified() && rsp.getStatus() == ProposalResponse.Status.SUCCESS) {
-        		signatureStrings.add(rsp.getProposalResponse().getEndorsement().getSignature());
-        		successful.add(rsp);
-        	} else {
-        		failed.add(rsp);
-        	}
-        }
-        log.info("Signature verification is ok!");
-        log.info("Collecting endorsements and sending transaction...");
-
+        String signatureType = getSignatureType(channel.getName(), chaincodeId);
+        return endorsementVerifier.verify(view, signatureType, responses).thenCompose(verified -> {
 
-        // check if there are orderers for contract (if there aren't, this is a first interaction)
-        Collection<Orderer> ordererNodes = orderers.get(chaincodeId);
-        if (ordererNodes == null || ordererNodes.isEmpty()) {
-        	// there are not. let us default to the bootstrap nodes on the channel
-        	ordererNodes = channel.getOrderers();
-        }
+        	Collection<ProposalResponse> successful = new LinkedList<ProposalResponse>();
+        	Collection<ProposalResponse> failed = new LinkedList<ProposalResponse>();
+        	
+	        // parse responses
+	        String responseString = null;
+	        List<ByteString> signatureStrings = new ArrayList<ByteString>(responses.size());
+	        for (ProposalResponse rsp : responses) {
+	        	// if endorsed by a signing node of the contract, with a valid signature
+	        	if (verified.contains(rsp)) {
+	        		responseString = rsp.getProposalResponse().getResponse().getPayload().toStringUtf8();
+	        		signatureStrings.add(rsp.getProposalResponse().getEndorsement().getSignature());
+	        		successful.add(rsp);
+	        	} else {
+	        		failed.add(rsp);
+	        	}
+	        }
+	        
+	        // if the contract's signature requirement isn't met => exit error
+	        if (successful.size() < quorum) {
+	        	throw new EndorsementException("Too many peers failed the endorsement! Successful: " + successful.size() + " . Failed: " + failed.size());
+	        }
+	        log.info("Signature verification is ok!");
+	        log.info("Collecting endorsements and sending transaction...");
+	
+	
+	        // send transaction with the endorsements that count to the contract's orderers (or bootstrap nodes on a first interaction), 
+	        // commit event will complete the future
+	        CompletableFuture<TransactionEvent> commit = broadcaster.broadcast(view, successful).orTimeout(
+				cfg.getLong("hlf.transaction.timeout"), 
+				TimeUnit.MILLISECONDS
+			);
+	
+	        log.info("Transaction sent.");
+	        
+	        final String chaincodeAnswer = responseString;
+	        return commit.thenApply(te -> {
+	        	log.info("Transaction " + te.getTransactionID() + " committed.");
+	        	return new ChaincodeResult(ChaincodeResult.CHAINCODE_SUCCESS, chaincodeAnswer, te.getTimestamp(), signatureStrings);
+	        });
+        });
+    }
+    
+    /**
+     * Sends an invoke through the contract's channel as it is when sent, not as it was when the invoke was queued
+     */
+    private CompletableFuture<ChaincodeResult> sendInvoke(String channelName, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) {
+    	return supplyOnProposalExecutor(() -> {
+    		ChannelView current = getChannelView(channelName, chaincodeId);
+    		return invoke(current, getQuorum(channelName, chaincodeId, current.getSigners().size()), chaincodeId, chaincodeFn, chaincodeArgs);
+    	}).exceptionally(t -> {
+    		// the proposal wasn't sent or answered, nothing was ordered
+    		Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    		throw cause instanceof EndorsementException ? (EndorsementException) cause : new EndorsementException(cause.getMessage(), cause);
+    	}).thenCompose(Function.identity());
+    }
+    
+    /**
+     * Queries a single peer, feeding its latency and outcome to the peer stats used for routing
+     */
+    private Collection<ProposalResponse> queryPeer(Channel channel, Peer peer, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) throws InvalidArgumentException, ProposalException {
+    	
+    	// only now is it called, a half open peer gives out its trial here
+    	if (!nodeHealth.tryAcquire(peer.getName())) {
+    		throw new IllegalStateException("Peer " + peer.getName() + " is already on its trial call");
+    	}
+    	
+    	long start = System.currentTimeMillis();
+    	boolean endorsed = false;
+    	try {
+    		Collection<ProposalResponse> responses = channel.queryByChaincode(
+				newQueryRequest(chaincodeId, chaincodeFn, chaincodeArgs, nodeHealth.getProposalTimeout(Collections.singletonList(peer.getName()))), 
+				Collections.singletonList(peer)
+			);
+    		// a single peer's threshsig share can't be verified by the sdk, signatures are left to the endorsement verifier
+    		endorsed = responses.stream().anyMatch(rsp -> rsp.getStatus() == ProposalResponse.Status.SUCCESS);
+    		return responses;
+    	} finally {
+    		long elapsed = System.currentTimeMillis() - start;
+    		peerStats.record(peer, elapsed, endorsed);
+    		nodeHealth.record(peer.getName(), elapsed, endorsed);
+    	}
+    }
+    
+    /**
+     * Peers that may be considered for a call, none is claimed: those actually called are claimed with acquirePeers or by queryPeer
+     */
+    private Collection<Peer> getAvailablePeers(Collection<Peer> peers) {
+    	List<Peer> available = new ArrayList<Peer>(peers.size());
+    	for (Peer peer : peers) {
+    		if (nodeHealth.isAvailable(peer.getName())) {
+    			available.add(peer);
+    		}
+    	}
+    	return available;
+    }
+    
+    /**
+     * Claims the peers a call is about to be sent to, leaving out half open ones whose trial was claimed meanwhile
+     */
+    private Collection<Peer> acquirePeers(Collection<Peer> peers) {
+    	List<Peer> acquired = new ArrayList<Peer>(peers.size());
+    	for (Peer peer : peers) {
+    		if (nodeHealth.tryAcquire(peer.getName())) {
+    			acquired.add(peer);
+    		}
+    	}
+    	return acquired;
+    }
+    
+    private long getProposalTimeout(Collection<Peer> peers) {
+    	List<String> names = new ArrayList<String>(peers.size());
+    	for (Peer peer : peers) {
+    		names.add(peer.getName());
+    	}
+    	return nodeHealth.getProposalTimeout(names);
+    }
+    
+    /**
+     * Feeds the outcome of a proposal sent to several peers at once to their health, latency can't be told per peer
+     */
+    private void recordOutcomes(Collection<ProposalResponse> responses) {
+    	for (ProposalResponse rsp : responses) {
+    		if (rsp.getPeer() != null) {
+    			nodeHealth.recordOutcome(rsp.getPeer().getName(), EndorsementCollector.isEndorsed(rsp));
+    		}
+    	}
+    }
+    
+    /**
+     * Opens the connections to the signers of a contract's channel ahead of its first call, in parallel.
+     * The returned future completes once every signer has answered (or failed to)
+     */
+    public CompletableFuture<Void> warmUpContract(String channelName, String contractId) {
+    	
+    	ChannelView view = getChannelView(channelName, contractId);
+    	List<CompletableFuture<Void>> probes = new ArrayList<CompletableFuture<Void>>();
+    	for (Peer peer : view.getSigners()) {
+    		probes.add(CompletableFuture.runAsync(() -> {
+    			long start = System.currentTimeMillis();
+    			try {
+    				view.getChannel().queryBlockchainInfo(peer);
+    				nodeHealth.record(peer.getName(), System.currentTimeMillis() - start, true);
+    			} catch (Exception e) {
+    				nodeHealth.record(peer.getName(), System.currentTimeMillis() - start, false);
+    				log.warn("Could not warm up peer " + peer.getName() + " on channel " + channelName + ": " + e.getMessage());
+    			}
+    		}, endorsementExecutor));
+    	}
+    	return CompletableFuture.allOf(probes.toArray(new CompletableFuture[0]));
+    }
+    
+    /**
+     * Probes an open node through any channel it is on. Orderers can't be probed, their next call is the trial
+     */
+    private Boolean probeNode(String name) throws Exception {
+    	
+    	List<ChannelView> views = new ArrayList<ChannelView>(bootstrapChannels.values());
+    	views.addAll(contractChannels.values());
+    	for (ChannelView view : views) {
+    		for (Peer peer : view.getSigners()) {
+    			if (peer.getName().equals(name)) {
+    				view.getChannel().queryBlockchainInfo(peer);
+    				return true;
+    			}
+    		}
+    	}
+    	return null;
+    }
+    
+    private QueryByChaincodeRequest newQueryRequest(String chaincodeId, String chaincodeFn, String[] chaincodeArgs, long proposalTimeout) {
         
-        // send transaction with endorsements
-        TransactionEvent te = channel.sendTransaction(responses, ordererNodes).get(
-			cfg.getLong("hlf.transaction.timeout"), 
-			TimeUnit.MILLISECONDS
-		);
-
-        log.info("Transaction sent.");
+        // create chaincode request
+        QueryByChaincodeRequest qpr = client.newQueryProposalRequest();
+        
+        // build cc id providing the chaincode name. Version is omitted here.
+        ChaincodeID CCId = ChaincodeID.newBuilder().setName(chaincodeId).build();
+        qpr.setChaincodeID(CCId);
         
-        return new ChaincodeResult(ChaincodeResult.CHAINCODE_SUCCESS, te.getTimestamp(), signatureStrings);
+        // CC function to be called
+        qpr.setFcn(chaincodeFn);
+        qpr.setArgs(chaincodeArgs);
+        qpr.setProposalWaitTime(proposalTimeout);
+        return qpr;
+    }
+    
+    public void setQueryRoutingPolicy(String channelName, String contractId, QueryRouter.Policy policy) {
+    	contractRoutingPolicies.put(channelName + "." + contractId, policy);
+    }
+    
+    public void setInvokeSequencing(String channelName, String contractId, int[] keyArgs) {
+    	if (keyArgs == null || keyArgs.length == 0) {
+    		contractSequencingKeys.remove(channelName + "." + contractId);
+    	} else {
+    		contractSequencingKeys.put(channelName + "." + contractId, keyArgs);
+    	}
+    }
+    
+    public void setInvokeBatching(String channelName, String contractId, InvokeBatcher.Policy policy) {
+    	if (policy == null) {
+    		contractBatchingPolicies.remove(channelName + "." + contractId);
+    	} else {
+    		contractBatchingPolicies.put(channelName + "." + contractId, policy);
+    	}
+    }
+    
+    /**
+     * Key args index the function's own arguments, as the contract declares them: the caller's public key at 0 is skipped
+     */
+    private static String getStateKey(String channelName, String contractId, int[] keyArgs, String[] chaincodeArgs) {
+    	StringBuilder key = new StringBuilder(channelName).append('.').append(contractId);
+    	for (int i : keyArgs) {
+    		// unit separator, so args can't run into each other
+    		key.append('\u001f').append(i + 1 < chaincodeArgs.length ? chaincodeArgs[i + 1] : "");
+    	}
+    	return key.toString();
+    }
+    
+    public void setQueryCaching(String channelName, String contractId, boolean enabled) {
+    	if (enabled) {
+    		uncachedContracts.remove(channelName + "." + contractId);
+    	} else {
+    		uncachedContracts.add(channelName + "." + contractId);
+    	}
+    }
+    
+    public Map<String, TransactionBroadcaster.OrdererCounters> getOrderingCounters() {
+    	return broadcaster.getCounters();
+    }
+    
+    public QueryCache getQueryCache() {
+    	return queryCache;
+    }
+    
+    public ClientShards getClientShards() {
+    	return clientShards;
+    }
+    
+    public EndorsementVerifier getEndorsementVerifier() {
+    	return endorsementVerifier;
+    }
+    
+    private QueryRouter.Policy getQueryRoutingPolicy(String channelName, String contractId) {
+    	return contractRoutingPolicies.getOrDefault(channelName + "." + contractId, defaultRoutingPolicy);
+    }
+    
+    private int getQuorum(String channelName, String contractId, int signerCount) {
+    	return getRequiredEndorsements(contractSignatureTypes.get(channelName + "." + contractId), signerCount);
+    }
+    
+    /**
+     * Number of endorsements a call needs: k of n for threshold signed contracts, a majority otherwise
+     */
+    public int getRequiredEndorsements(String signatureType, int signerCount) {
+    	
+    	if ("threshsig".equals(signatureType)) {
+    		GroupKey groupKey = client.getCryptoSuite().getGroupKey();
+    		if (groupKey != null) {
+    			return Math.min(groupKey.getK(), signerCount);
+    		}
+    	}
+    	return signerCount / 2 + 1;
+    }
+    
+    private String getSignatureType(String channelName, String contractId) {
+    	// calls before a contract is verified are checked as multisig, against the bootstrap nodes
+    	return contractSignatureTypes.getOrDefault(channelName + "." + contractId, "multisig");
+    }
+    
+    /**
+     * Runs a blocking SDK call on the proposal executor, surfacing its checked exceptions through the future
+     */
+    private <T> CompletableFuture<T> supplyOnProposalExecutor(Callable<T> call) {
+    	return CompletableFuture.supplyAsync(() -> {
+    		try {
+    			return call.call();
+    		} catch (Exception e) {
+    			throw new CompletionException(e);
+    		}
+    	}, proposalExecutor);
     }
     
 
@@ -0,0 +1,151 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+/**
+ * Sends a proposal to each peer individually and completes as soon as a quorum of them has endorsed it,
+ * or as soon as the quorum can no longer be reached. Peers that are yet to answer are cancelled.
+ *
+ * Only endorsements that pass the caller's check count towards the quorum, so one that is turned down
+ * leaves the collector waiting on the other peers rather than failing the call.
+ */
+public class EndorsementCollector {
+
+    private static final Logger log = Logger.getLogger(EndorsementCollector.class);
+
+	@FunctionalInterface
+	public interface ProposalCall {
+		Collection<ProposalResponse> send(Peer peer) throws Exception;
+	}
+
+	/**
+	 * Responses whose endorsements count, out of every response gathered so far
+	 */
+	@FunctionalInterface
+	public interface EndorsementCheck {
+		CompletableFuture<List<ProposalResponse>> endorsements(List<ProposalResponse> responses);
+	}
+
+	private int quorum;
+	private EndorsementCheck check;
+	private int pending;
+	private boolean[] answered;
+	private List<ProposalResponse> responses;
+	private int successful; // answered successfully, not yet checked
+	private int arrivals;
+	private CompletableFuture<Collection<ProposalResponse>> result;
+
+	private EndorsementCollector(int peerCount, int quorum, EndorsementCheck check) {
+		this.quorum = quorum;
+		this.check = check;
+		this.pending = peerCount;
+		this.answered = new boolean[peerCount];
+		this.responses = new ArrayList<ProposalResponse>(peerCount);
+		this.successful = 0;
+		this.result = new CompletableFuture<Collection<ProposalResponse>>();
+	}
+
+	/**
+	 * Collects responses from the given peers. The future holds every response gathered up to the decision,
+	 * it is up to the caller to check whether the quorum was met
+	 */
+	public static CompletableFuture<Collection<ProposalResponse>> collect(Collection<Peer> peers, int quorum, ProposalCall call, EndorsementCheck check, ExecutorService executor) {
+
+		EndorsementCollector collector = new EndorsementCollector(peers.size(), quorum, check);
+		if (peers.isEmpty()) {
+			collector.result.complete(new ArrayList<ProposalResponse>());
+			return collector.result;
+		}
+		
+		List<Future<?>> calls = new ArrayList<Future<?>>(peers.size());
+		int i = 0;
+		for (Peer peer : peers) {
+			final int peerIndex = i++;
+			calls.add(executor.submit(() -> {
+				Collection<ProposalResponse> rsps = null;
+				try {
+					rsps = call.send(peer);
+				} catch (Exception e) {
+					log.warn("Proposal to peer " + peer.getName() + " failed: " + e.getMessage());
+				}
+				collector.received(peerIndex, rsps);
+			}));
+		}
+
+		// stragglers are no longer needed once a decision is made
+		collector.result.whenComplete((rsps, t) -> collector.cancelStragglers(calls));
+		return collector.result;
+	}
+
+	public static boolean isEndorsed(ProposalResponse rsp) {
+		return rsp.isVerified() && rsp.getStatus() == ProposalResponse.Status.SUCCESS;
+	}
+
+	private void received(int peerIndex, Collection<ProposalResponse> rsps) {
+
+		List<ProposalResponse> decision = null;
+		List<ProposalResponse> checked = null;
+		int arrival;
+		synchronized (this) {
+			answered[peerIndex] = true;
+			if (result.isDone())
+				return;
+	
+			pending--;
+			if (rsps != null) {
+				for (ProposalResponse rsp : rsps) {
+					responses.add(rsp);
+					if (rsp.getStatus() == ProposalResponse.Status.SUCCESS)
+						successful++;
+				}
+			}
+			arrival = ++arrivals;
+	
+			// done when the peers yet to answer can't make it anymore, checked once there may be a quorum
+			if (successful + pending < quorum) {
+				decision = new ArrayList<ProposalResponse>(responses);
+			} else if (successful >= quorum) {
+				checked = new ArrayList<ProposalResponse>(responses);
+			}
+		}
+		
+		// complete outside the lock, dependent stages run on this thread
+		if (decision != null) {
+			result.complete(decision);
+		} else if (checked != null) {
+			final List<ProposalResponse> snapshot = checked;
+			check.endorsements(snapshot).whenComplete((valid, t) -> checked(arrival, snapshot, t == null ? valid.size() : 0));
+		}
+	}
+	
+	private void checked(int arrival, List<ProposalResponse> snapshot, int endorsed) {
+		
+		synchronized (this) {
+			if (result.isDone())
+				return;
+			
+			// done when quorum is met or, as of the latest answer, when the peers yet to answer can't make it anymore
+			if (endorsed < quorum && (arrival != arrivals || endorsed + pending >= quorum))
+				return;
+		}
+		result.complete(snapshot);
+	}
+	
+	private synchronized void cancelStragglers(List<Future<?>> calls) {
+		for (int i = 0; i < calls.size(); i++) {
+			if (!answered[i]) {
+				calls.get(i).cancel(true);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdentity;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse.Endorsement;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.helper.Config;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+
+import com.google.protobuf.ByteString;
+
+import fgodinho.threshsig.GroupKey;
+import fgodinho.threshsig.SigShare;
+import util.NodeConnection;
+
+/**
+ * Checks the endorsements of a call against the contract that made it, on a worker pool of its own.
+ *
+ * Multisig endorsements count when they come from one of the contract's signing nodes, the endorser's certificate
+ * names that node and its signature holds over the response. Threshsig endorsements count when they come from
+ * signing nodes and enough of their shares combine into a valid signature under the group key.
+ * Signatures already verified are remembered, so repeat responses skip the public key operations.
+ */
+public class EndorsementVerifier {
+
+    private static final Logger log = Logger.getLogger(EndorsementVerifier.class);
+
+	private ExecutorService verifierExecutor;
+	private int maxCached;
+	private LinkedHashMap<String, Boolean> verifiedSignatures; // digests of signatures (or share combinations) found valid, access ordered
+	private String signatureAlgorithm;
+
+	private AtomicLong verified;
+	private AtomicLong cacheHits;
+	private AtomicLong rejected;
+
+	public EndorsementVerifier(Configuration cfg) {
+		int threads = cfg.getInt("hlf.verification.threadPool");
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+
+		this.verifierExecutor = Executors.newFixedThreadPool(threads);
+		this.maxCached = cfg.getInt("hlf.verification.cache.size");
+		this.verifiedSignatures = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > EndorsementVerifier.this.maxCached;
+			}
+		};
+		this.signatureAlgorithm = Config.getConfig().getSignatureAlgorithm();
+		this.verified = new AtomicLong();
+		this.cacheHits = new AtomicLong();
+		this.rejected = new AtomicLong();
+	}
+
+	/**
+	 * Responses whose endorsements count towards the contract's quorum, in the order they were given
+	 */
+	public CompletableFuture<List<ProposalResponse>> verify(ChannelView view, String signatureType, Collection<ProposalResponse> responses) {
+
+		Set<String> signingNodes = new HashSet<String>();
+		for (NodeConnection node : view.getNodes()) {
+			if (node.type == NodeConnection.PEER_TYPE)
+				signingNodes.add(node.name);
+		}
+		CryptoSuite cryptoSuite = view.getClient().getCryptoSuite();
+
+		// only successful responses from the contract's signing nodes are worth checking
+		List<ProposalResponse> candidates = new ArrayList<ProposalResponse>(responses.size());
+		for (ProposalResponse rsp : responses) {
+			if (rsp.getStatus() == ProposalResponse.Status.SUCCESS && rsp.getPeer() != null && signingNodes.contains(rsp.getPeer().getName())) {
+				candidates.add(rsp);
+			} else if (rsp.getStatus() == ProposalResponse.Status.SUCCESS) {
+				rejected.incrementAndGet();
+				log.warn("Endorsement from " + (rsp.getPeer() == null ? "an unknown peer" : rsp.getPeer().getName()) + " isn't from a signing node of the contract");
+			}
+		}
+
+		List<CompletableFuture<List<ProposalResponse>>> checks = new ArrayList<CompletableFuture<List<ProposalResponse>>>();
+		if ("threshsig".equals(signatureType)) {
+			// shares only combine over the same response, peers that answered differently are checked apart
+			Map<ByteString, List<ProposalResponse>> byPayload = new LinkedHashMap<ByteString, List<ProposalResponse>>();
+			for (ProposalResponse rsp : candidates) {
+				byPayload.computeIfAbsent(rsp.getProposalResponse().getPayload(), p -> new ArrayList<ProposalResponse>()).add(rsp);
+			}
+			for (List<ProposalResponse> group : byPayload.values()) {
+				checks.add(CompletableFuture.supplyAsync(() -> verifyThreshSig(cryptoSuite.getGroupKey(), group), verifierExecutor));
+			}
+		} else {
+			for (ProposalResponse rsp : candidates) {
+				checks.add(CompletableFuture.supplyAsync(() -> verifyMultiSig(cryptoSuite, rsp), verifierExecutor));
+			}
+		}
+
+		return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[checks.size()])).thenApply(v -> {
+			Set<ProposalResponse> valid = new HashSet<ProposalResponse>();
+			for (CompletableFuture<List<ProposalResponse>> check : checks) {
+				valid.addAll(check.join());
+			}
+			List<ProposalResponse> endorsements = new ArrayList<ProposalResponse>(valid.size());
+			for (ProposalResponse rsp : responses) {
+				if (valid.contains(rsp))
+					endorsements.add(rsp);
+			}
+			return endorsements;
+		});
+	}
+
+	public void shutdown() {
+		verifierExecutor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "EndorsementVerifier [verified=" + verified + ", cacheHits=" + cacheHits + ", rejected=" + rejected + ", cached=" + getCachedCount() + "]";
+	}
+
+	private List<ProposalResponse> verifyMultiSig(CryptoSuite cryptoSuite, ProposalResponse rsp) {
+
+		String peerName = rsp.getPeer().getName();
+		try {
+			Endorsement endorsement = rsp.getProposalResponse().getEndorsement();
+			SerializedIdentity endorser = SerializedIdentity.parseFrom(endorsement.getEndorser());
+			byte[] crtBytes = endorser.getIdBytes().toByteArray();
+			byte[] signature = endorsement.getSignature().toByteArray();
+			byte[] data = rsp.getProposalResponse().getPayload().concat(endorsement.getEndorser()).toByteArray();
+
+			// the peer that answered has to be the one that signed
+			X509Certificate crt = (X509Certificate) cryptoSuite.bytesToCertificate(crtBytes);
+			if (!peerName.equals(commonName(crt))) {
+				return reject("Endorsement from " + peerName + " was signed by " + crt.getSubjectX500Principal().getName());
+			}
+
+			String key = digest(crtBytes, signature, data);
+			if (isRemembered(key)) {
+				cacheHits.incrementAndGet();
+				return Collections.singletonList(rsp);
+			}
+			if (!cryptoSuite.verify(crtBytes, signatureAlgorithm, signature, data)) {
+				return reject("Endorsement signature of " + peerName + " is invalid");
+			}
+			remember(key);
+			return Collections.singletonList(rsp);
+		} catch (Exception e) {
+			return reject("Could not verify the endorsement of " + peerName + ": " + e.getMessage());
+		}
+	}
+
+	private List<ProposalResponse> verifyThreshSig(GroupKey groupKey, List<ProposalResponse> group) {
+
+		if (groupKey == null) {
+			return reject("No threshsig group key to verify " + group.size() + " endorsements with");
+		}
+		if (group.size() < groupKey.getK()) {
+			return reject("Only " + group.size() + " of the " + groupKey.getK() + " signature shares needed agree on the response");
+		}
+
+		try {
+			// peers sign the url safe base64 of the response's SHA-1
+			byte[] data = Base64.getUrlEncoder().encode(MessageDigest.getInstance("SHA-1").digest(group.get(0).getProposalResponse().getPayload().toByteArray()));
+			SigShare[] shares = new SigShare[group.size()];
+			List<byte[]> shareBytes = new ArrayList<byte[]>(group.size());
+			for (int i = 0; i < shares.length; i++) {
+				byte[] share = group.get(i).getProposalResponse().getEndorsement().getSignature().toByteArray();
+				shares[i] = SigShare.fromBytes(share);
+				shareBytes.add(share);
+			}
+
+			// same shares in any order are the same combination
+			shareBytes.sort(Arrays::compare);
+			shareBytes.add(0, data);
+			String key = digest(shareBytes.toArray(new byte[shareBytes.size()][]));
+			if (isRemembered(key)) {
+				cacheHits.incrementAndGet();
+				return group;
+			}
+			if (!SigShare.verifyCombinations(data, shares, groupKey)) {
+				return reject("Signature shares of " + group.size() + " peers don't combine into a valid threshold signature");
+			}
+			remember(key);
+			return group;
+		} catch (Exception e) {
+			return reject("Could not verify " + group.size() + " signature shares: " + e.getMessage());
+		}
+	}
+
+	private List<ProposalResponse> reject(String reason) {
+		rejected.incrementAndGet();
+		log.warn(reason);
+		return new ArrayList<ProposalResponse>();
+	}
+
+	private synchronized boolean isRemembered(String key) {
+		// a get, so the entry counts as recently used
+		return verifiedSignatures.get(key) != null;
+	}
+
+	private void remember(String key) {
+		verified.incrementAndGet();
+		if (maxCached > 0) {
+			synchronized (this) {
+				verifiedSignatures.put(key, Boolean.TRUE);
+			}
+		}
+	}
+
+	private synchronized int getCachedCount() {
+		return verifiedSignatures.size();
+	}
+
+	private static String commonName(X509Certificate crt) throws InvalidNameException {
+		for (Rdn rdn : new LdapName(crt.getSubjectX500Principal().getName()).getRdns()) {
+			if ("CN".equalsIgnoreCase(rdn.getType()))
+				return rdn.getValue().toString();
+		}
+		return null;
+	}
+
+	private static String digest(byte[]... parts) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (byte[] part : parts) {
+				// length prefixed, so parts can't run into each other
+				md.update(Integer.toString(part.length).getBytes(StandardCharsets.UTF_8));
+				md.update((byte) ':');
+				md.update(part);
+			}
+			return Base64.getEncoder().encodeToString(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
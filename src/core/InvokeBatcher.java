@@ -0,0 +1,244 @@
+package core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import core.dto.ChaincodeResult;
+import core.exception.EndorsementException;
+
+/**
+ * Coalesces invokes of batch capable functions into a single transaction to the contract's batch entry point.
+ *
+ * Invokes are collected per channel, contract, function and caller until the batch is full or its time window closes.
+ * Like any invoke, the entry point gets the caller's public key as its first argument (every call in a batch has
+ * the same caller), then a JSON array of {"fn": ..., "args": [...]} calls, their arguments without the key.
+ * It is expected to apply each call on its own, leaving failed ones without effect, and to answer with a JSON array
+ * of one {"ok": true} or {"ok": false, "error": ...} per call, in order. Each caller gets its own call's outcome.
+ * If the batch as a whole is turned down before ordering, or commits as invalid, it had no effect and its calls are
+ * sent again one by one, so a bad call only fails its own caller. Any other failure (e.g. a commit that timed out)
+ * leaves unknown whether the batch took effect, so every caller gets that failure instead of a second send.
+ */
+public class InvokeBatcher {
+
+    private static final Logger log = Logger.getLogger(InvokeBatcher.class);
+
+	public static class Policy {
+		private Set<String> functions; // batch capable functions
+		private String entryPoint;
+
+		public Policy(Set<String> functions, String entryPoint) {
+			this.functions = functions;
+			this.entryPoint = entryPoint;
+		}
+
+		public boolean isBatched(String function) {
+			return functions.contains(function);
+		}
+
+		public String getEntryPoint() {
+			return entryPoint;
+		}
+	}
+
+	private int maxSize;
+	private long maxDelay; // millis
+	private Map<String, Batch> open; // per channel, contract and function
+	private ScheduledExecutorService flusher;
+	private ObjectMapper mapper;
+
+	public InvokeBatcher(Configuration cfg) {
+		this.maxSize = cfg.getInt("hlf.batching.maxSize");
+		this.maxDelay = cfg.getLong("hlf.batching.maxDelay");
+		this.open = new HashMap<String, Batch>();
+		this.flusher = Executors.newSingleThreadScheduledExecutor();
+		this.mapper = new ObjectMapper();
+	}
+
+	/**
+	 * Adds the invoke to the open batch of its function and caller. The sender is used to send the whole batch
+	 * (or the invoke itself, if it is the only one in the window or the batch had no effect)
+	 */
+	public CompletableFuture<ChaincodeResult> submit(String key, String entryPoint, String chaincodeFn, String[] chaincodeArgs, BiFunction<String, String[], CompletableFuture<ChaincodeResult>> sender) {
+
+		// the first argument is the caller's public key, only calls of the same caller share a batch
+		String batchKey = key + "." + chaincodeArgs[0];
+		CompletableFuture<ChaincodeResult> result = new CompletableFuture<ChaincodeResult>();
+		Batch full = null;
+		synchronized (this) {
+			Batch batch = open.get(batchKey);
+			if (batch == null) {
+				batch = new Batch(entryPoint, chaincodeFn, chaincodeArgs[0], sender);
+				open.put(batchKey, batch);
+				Batch scheduled = batch;
+				flusher.schedule(() -> flush(batchKey, scheduled), maxDelay, TimeUnit.MILLISECONDS);
+			}
+			batch.calls.add(chaincodeArgs);
+			batch.callers.add(result);
+			if (batch.calls.size() >= maxSize) {
+				open.remove(batchKey);
+				full = batch;
+			}
+		}
+
+		if (full != null) {
+			send(full);
+		}
+		return result;
+	}
+
+	public void shutdown() {
+		flusher.shutdownNow();
+	}
+
+	private void flush(String key, Batch batch) {
+		synchronized (this) {
+			// already sent, for being full
+			if (!open.remove(key, batch))
+				return;
+		}
+		send(batch);
+	}
+
+	private void send(Batch batch) {
+
+		if (batch.calls.size() == 1) {
+			sendOne(batch, 0);
+			return;
+		}
+
+		CompletableFuture<ChaincodeResult> pending;
+		try {
+			log.info("Sending a batch of " + batch.calls.size() + " '" + batch.function + "' invokes through '" + batch.entryPoint + "'...");
+			pending = batch.sender.apply(batch.entryPoint, new String[] { batch.callerKey, encode(batch) });
+		} catch (JsonProcessingException | RuntimeException e) {
+			pending = CompletableFuture.failedFuture(e);
+		}
+
+		pending.whenComplete((result, t) -> {
+			if (t == null && result != null && result.getStatus() == ChaincodeResult.CHAINCODE_SUCCESS) {
+				complete(batch, result);
+				return;
+			}
+			if (t != null && hadNoEffect(t)) {
+				log.warn("Batch of " + batch.calls.size() + " '" + batch.function + "' invokes failed, sending them one by one: " + t.getMessage());
+				for (int i = 0; i < batch.calls.size(); i++) {
+					sendOne(batch, i);
+				}
+				return;
+			}
+			
+			// it may have been applied, sending its calls again could apply them twice
+			Throwable failure = t != null ? t : new RuntimeException("Chaincode failure when performing batched '" + batch.function + "' invocation");
+			log.warn("Batch of " + batch.calls.size() + " '" + batch.function + "' invokes failed with an unknown outcome, failing its callers: " + failure.getMessage());
+			for (CompletableFuture<ChaincodeResult> caller : batch.callers) {
+				caller.completeExceptionally(failure);
+			}
+		});
+	}
+
+	// turned down before ordering, or ordered and committed with an invalid validation code
+	private static boolean hadNoEffect(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof EndorsementException)
+				return true;
+			if (cause instanceof TransactionEventException) {
+				TransactionEvent te = ((TransactionEventException) cause).getTransactionEvent();
+				return te != null && !te.isValid();
+			}
+		}
+		return false;
+	}
+
+	private void sendOne(Batch batch, int call) {
+		CompletableFuture<ChaincodeResult> caller = batch.callers.get(call);
+		try {
+			batch.sender.apply(batch.function, batch.calls.get(call)).whenComplete((result, t) -> {
+				if (t != null) {
+					caller.completeExceptionally(t);
+				} else {
+					caller.complete(result);
+				}
+			});
+		} catch (RuntimeException e) {
+			caller.completeExceptionally(e);
+		}
+	}
+
+	// hands each caller its own call's outcome from the entry point's answer
+	private void complete(Batch batch, ChaincodeResult result) {
+
+		JsonNode outcomes = null;
+		try {
+			outcomes = result.getContent() == null ? null : mapper.readTree(result.getContent());
+		} catch (IOException e) {
+			// handled below
+		}
+		if (outcomes == null || !outcomes.isArray() || outcomes.size() != batch.calls.size()) {
+			// the batch committed, but which calls took effect is unknown
+			log.warn("Batch entry point '" + batch.entryPoint + "' didn't answer with one outcome per call, reporting the batch's commit to every caller");
+			for (CompletableFuture<ChaincodeResult> caller : batch.callers) {
+				caller.complete(result);
+			}
+			return;
+		}
+
+		for (int i = 0; i < batch.callers.size(); i++) {
+			JsonNode outcome = outcomes.get(i);
+			if (outcome.path("ok").asBoolean(false)) {
+				batch.callers.get(i).complete(result);
+			} else {
+				batch.callers.get(i).completeExceptionally(new RuntimeException(
+						"Batched '" + batch.function + "' invoke failed: " + outcome.path("error").asText("no reason given")));
+			}
+		}
+	}
+
+	private String encode(Batch batch) throws JsonProcessingException {
+		List<Map<String, Object>> calls = new ArrayList<Map<String, Object>>(batch.calls.size());
+		for (String[] args : batch.calls) {
+			Map<String, Object> call = new LinkedHashMap<String, Object>();
+			call.put("fn", batch.function);
+			// the caller's key is the entry point's own first argument
+			call.put("args", Arrays.copyOfRange(args, 1, args.length));
+			calls.add(call);
+		}
+		return mapper.writeValueAsString(calls);
+	}
+
+	private static class Batch {
+		String entryPoint;
+		String function;
+		String callerKey; // public key of every caller in the batch
+		BiFunction<String, String[], CompletableFuture<ChaincodeResult>> sender; // resolves the contract's channel when sending
+		List<String[]> calls = new ArrayList<String[]>(); // full arguments, caller's key included
+		List<CompletableFuture<ChaincodeResult>> callers = new ArrayList<CompletableFuture<ChaincodeResult>>();
+
+		Batch(String entryPoint, String function, String callerKey, BiFunction<String, String[], CompletableFuture<ChaincodeResult>> sender) {
+			this.entryPoint = entryPoint;
+			this.function = function;
+			this.callerKey = callerKey;
+			this.sender = sender;
+		}
+	}
+
+}
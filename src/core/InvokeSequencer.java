@@ -0,0 +1,123 @@
+package core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+
+import core.dto.ChaincodeResult;
+
+/**
+ * Runs invokes on the same state key one after the other, and invokes on different keys in parallel.
+ *
+ * Invokes that still fail on a read conflict (from clients outside this API, for instance) are endorsed
+ * and sent again after an exponential backoff with jitter.
+ */
+public class InvokeSequencer {
+
+    private static final Logger log = Logger.getLogger(InvokeSequencer.class);
+
+	private ConcurrentMap<String, CompletableFuture<ChaincodeResult>> tails; // last invoke queued, per state key
+	private ScheduledExecutorService retrier;
+	private int maxRetries;
+	private long backoff; // millis, doubled on every retry
+
+	public InvokeSequencer(Configuration cfg) {
+		this.tails = new ConcurrentHashMap<String, CompletableFuture<ChaincodeResult>>();
+		this.retrier = Executors.newSingleThreadScheduledExecutor();
+		this.maxRetries = cfg.getInt("hlf.sequencing.maxRetries");
+		this.backoff = cfg.getLong("hlf.sequencing.backoff");
+	}
+
+	/**
+	 * Queues the invoke behind the previous one on the same key. It runs whatever the outcome of that one
+	 */
+	public CompletableFuture<ChaincodeResult> submit(String key, Supplier<CompletableFuture<ChaincodeResult>> invoke) {
+
+		CompletableFuture<ChaincodeResult> queued = new CompletableFuture<ChaincodeResult>();
+		CompletableFuture<ChaincodeResult> previous = tails.put(key, queued);
+
+		Runnable run = () -> withRetries(invoke, 0).whenComplete((result, t) -> {
+			// nothing queued behind us, forget the key
+			tails.remove(key, queued);
+			if (t != null) {
+				queued.completeExceptionally(t);
+			} else {
+				queued.complete(result);
+			}
+		});
+
+		if (previous == null) {
+			run.run();
+		} else {
+			previous.whenComplete((result, t) -> run.run());
+		}
+		return queued;
+	}
+
+	public int getQueuedKeys() {
+		return tails.size();
+	}
+
+	public void shutdown() {
+		retrier.shutdownNow();
+	}
+
+	private CompletableFuture<ChaincodeResult> withRetries(Supplier<CompletableFuture<ChaincodeResult>> invoke, int attempt) {
+
+		CompletableFuture<ChaincodeResult> result = new CompletableFuture<ChaincodeResult>();
+		CompletableFuture<ChaincodeResult> pending;
+		try {
+			pending = invoke.get();
+		} catch (RuntimeException e) {
+			pending = new CompletableFuture<ChaincodeResult>();
+			pending.completeExceptionally(e);
+		}
+
+		pending.whenComplete((rsp, t) -> {
+			if (t == null) {
+				result.complete(rsp);
+			} else if (attempt < maxRetries && isReadConflict(t)) {
+				long delay = (backoff << attempt) + ThreadLocalRandom.current().nextLong(backoff + 1);
+				log.info("Invoke hit a read conflict, retrying in " + delay + " ms (attempt " + (attempt + 1) + " of " + maxRetries + ")...");
+				retrier.schedule(
+					() -> withRetries(invoke, attempt + 1).whenComplete((retried, retryError) -> {
+						if (retryError != null) {
+							result.completeExceptionally(retryError);
+						} else {
+							result.complete(retried);
+						}
+					}),
+					delay,
+					TimeUnit.MILLISECONDS
+				);
+			} else {
+				result.completeExceptionally(t);
+			}
+		});
+		return result;
+	}
+
+	private static boolean isReadConflict(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (!(t instanceof TransactionEventException) || ((TransactionEventException) t).getTransactionEvent() == null)
+			return false;
+
+		byte code = ((TransactionEventException) t).getTransactionEvent().getValidationCode();
+		return code == TxValidationCode.MVCC_READ_CONFLICT_VALUE || code == TxValidationCode.PHANTOM_READ_CONFLICT_VALUE;
+	}
+
+}
@@ -0,0 +1,207 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.EventHub;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.exception.CryptoException;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.TransactionException;
+
+import util.NodeConnection;
+
+/**
+ * Shared pool of peer and orderer connections, keyed by {@link NodeConnection} (name, host, port and TLS cert).
+ *
+ * Node settings and TLS cert bytes are resolved once per node and kept, they hold no connection.
+ * Since the SDK binds a Peer/Orderer to a single channel, live gRPC connections are only shared by leasing
+ * the same initialized channel to every contract that declares the same set of nodes: channels with
+ * overlapping but different node sets each open their own connections.
+ */
+public class NodeConnectionPool {
+
+    private static final Logger log = Logger.getLogger(NodeConnectionPool.class);
+
+	private Configuration cfg;
+	private ClientShards clientShards; // clients for new channels
+	private ConcurrentMap<String, byte[]> tlsCrtCache; // per cert path
+	private ConcurrentMap<NodeConnection, Properties> nodeProperties; // settings of every node seen
+	private Map<String, PooledChannel> channels; // per channel name and node set
+	private Map<ChannelView, PooledChannel> leases;
+
+	public NodeConnectionPool(Configuration cfg, ClientShards clientShards) {
+		this.cfg = cfg;
+		this.clientShards = clientShards;
+		this.tlsCrtCache = new ConcurrentHashMap<String, byte[]>();
+		this.nodeProperties = new ConcurrentHashMap<NodeConnection, Properties>();
+		this.channels = new HashMap<String, PooledChannel>();
+		this.leases = new IdentityHashMap<ChannelView, PooledChannel>();
+	}
+
+	/**
+	 * Leases an initialized channel with the given nodes, reusing a live one if any other contract has the same nodes
+	 */
+	public ChannelView lease(String channelName, NodeConnection[] nodesOnChannel) throws InvalidArgumentException, TransactionException, CryptoException {
+
+		String key = channelKey(channelName, nodesOnChannel);
+		synchronized (this) {
+			PooledChannel pooled = channels.get(key);
+			if (pooled != null) {
+				pooled.references++;
+				log.info("Reusing pooled channel " + key + " (" + pooled.references + " leases)");
+				return pooled.view;
+			}
+		}
+
+		// build outside the lock, channel initialization goes to the network
+    	HFClient client = clientShards.newClient(key);
+
+    	Channel channel = client.newChannel(channelName);
+    	try {
+    		addNodesToChannel(client, channel, nodesOnChannel, false);
+    		channel.initialize();
+    	} catch (InvalidArgumentException | TransactionException | RuntimeException e) {
+    		channel.shutdown(true);
+    		throw e;
+    	}
+    	ChannelView view = new ChannelView(client, channel, nodesOnChannel);
+
+    	PooledChannel winner;
+		synchronized (this) {
+			winner = channels.get(key);
+			if (winner == null) {
+				PooledChannel pooled = new PooledChannel(key, view);
+				channels.put(key, pooled);
+				leases.put(view, pooled);
+				return view;
+			}
+			winner.references++;
+		}
+
+		// another contract published the same channel meanwhile, drop ours
+		view.shutdown();
+		return winner.view;
+	}
+
+	/**
+	 * Returns a leased channel, shutting it down when no contract uses it anymore
+	 */
+	public void release(ChannelView view) {
+
+		synchronized (this) {
+			PooledChannel pooled = leases.get(view);
+			if (pooled == null || --pooled.references > 0) {
+				return;
+			}
+			leases.remove(view);
+			channels.remove(pooled.key);
+		}
+
+		log.info("Closing pooled channel " + channelKey(view.getChannel().getName(), view.getNodes()));
+		view.shutdown();
+	}
+
+	/**
+	 * Adds nodes to a channel that is yet to be initialized, using the pooled settings for each node
+	 */
+    public void addNodesToChannel(HFClient client, Channel channel, NodeConnection[] nodesOnChannel, boolean withEventHub) throws InvalidArgumentException {
+
+    	for (int i = 0; i < nodesOnChannel.length; i++) {
+
+            Properties secPeerProperties = getNodeProperties(nodesOnChannel[i]);
+
+            if (nodesOnChannel[i].type == NodeConnection.PEER_TYPE) {
+            	// peer name and endpoint in network
+	            Peer peer = client.newPeer(nodesOnChannel[i].name, "grpcs://" + nodesOnChannel[i].host + ":"  + nodesOnChannel[i].port, secPeerProperties);
+	            channel.addPeer(peer);
+	            if (withEventHub && i == 0) {
+	            	// eventhub on peer endpoints
+	            	EventHub eventHub = client.newEventHub("eventhub0" + i, "grpcs://" + nodesOnChannel[i].host + ":" + nodesOnChannel[i].eventHubPort, secPeerProperties);
+	            	channel.addEventHub(eventHub);
+	            }
+            } else if (nodesOnChannel[i].type == NodeConnection.ORDERER_TYPE) {
+            	// orderer name and endpoint in network
+                Orderer orderer = client.newOrderer(nodesOnChannel[i].name, "grpcs://" + nodesOnChannel[i].host + ":"  + nodesOnChannel[i].port, secPeerProperties);
+                channel.addOrderer(orderer);
+            }
+    	}
+    }
+
+    public synchronized int getPooledChannelCount() {
+    	return channels.size();
+    }
+
+    public int getPooledNodeCount() {
+    	return nodeProperties.size();
+    }
+
+    private Properties getNodeProperties(NodeConnection node) {
+    	// every sdk node gets its own copy, the cert bytes are shared
+    	return (Properties) nodeProperties.computeIfAbsent(node, this::buildNodeProperties).clone();
+    }
+
+    private Properties buildNodeProperties(NodeConnection node) {
+
+        Properties secPeerProperties = new Properties();
+        secPeerProperties.setProperty("hostnameOverride", node.name);
+        secPeerProperties.setProperty("sslProvider", cfg.getString("hlf.communication.sslProvider"));
+        secPeerProperties.setProperty("negotiationType", cfg.getString("hlf.communication.negotiationMode"));
+        secPeerProperties.put("pemBytes", getTlsCrt(node.tlsCrtPath));
+
+        // keep idle connections warm so pooled nodes don't pay a new handshake
+        secPeerProperties.put("grpc.NettyChannelBuilderOption.keepAliveTime",
+        		new Object[] {cfg.getLong("hlf.communication.keepAliveTime"), TimeUnit.MILLISECONDS});
+        secPeerProperties.put("grpc.NettyChannelBuilderOption.keepAliveTimeout",
+        		new Object[] {cfg.getLong("hlf.communication.keepAliveTimeout"), TimeUnit.MILLISECONDS});
+        secPeerProperties.put("grpc.NettyChannelBuilderOption.keepAliveWithoutCalls", new Object[] {true});
+
+        return secPeerProperties;
+    }
+
+    private byte[] getTlsCrt(String tlsCrtPath) {
+    	return tlsCrtCache.computeIfAbsent(tlsCrtPath, path -> {
+    		try {
+    			return Files.readAllBytes(Paths.get(path));
+    		} catch (IOException e) {
+    			throw new RuntimeException("Missing TLS cert files", e);
+    		}
+    	});
+    }
+
+    private static String channelKey(String channelName, NodeConnection[] nodesOnChannel) {
+    	// node order on the contract is irrelevant for the connections
+    	return channelName + Arrays.stream(nodesOnChannel)
+    			.map(node -> node + "#" + node.tlsCrtPath)
+    			.sorted()
+    			.collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private static class PooledChannel {
+    	String key;
+    	ChannelView view;
+    	int references;
+
+    	PooledChannel(String key, ChannelView view) {
+    		this.key = key;
+    		this.view = view;
+    		this.references = 1;
+    	}
+    }
+
+}
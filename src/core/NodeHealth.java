@@ -0,0 +1,226 @@
+package core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * Health of every peer and orderer, by node name: rolling latency percentiles and a circuit breaker.
+ *
+ * A breaker opens after a number of consecutive failures, and the node is left out of calls until a background
+ * probe (or, for nodes that can't be probed, a single trial call) shows it is back. Proposal timeouts are
+ * derived from the observed p99 latency instead of the static configuration.
+ */
+public class NodeHealth {
+
+    private static final Logger log = Logger.getLogger(NodeHealth.class);
+
+	private static final int WINDOW = 128; // latency samples kept per node
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	@FunctionalInterface
+	public interface Probe {
+		// true if the node answered, false if it didn't, null if the node can't be probed
+		Boolean probe(String node) throws Exception;
+	}
+
+	private ConcurrentMap<String, Node> nodes; // per node name
+	private Probe probe;
+	private ScheduledExecutorService prober;
+
+	private int failureThreshold;
+	private long openInterval; // millis
+	private double timeoutFactor;
+	private long minTimeout; // millis
+	private long maxTimeout; // millis
+	private int minSamples;
+
+	public NodeHealth(Configuration cfg, Probe probe) {
+		this.nodes = new ConcurrentHashMap<String, Node>();
+		this.probe = probe;
+		this.failureThreshold = cfg.getInt("hlf.health.failureThreshold");
+		this.openInterval = cfg.getLong("hlf.health.openInterval");
+		this.timeoutFactor = cfg.getDouble("hlf.health.timeoutFactor");
+		this.minTimeout = cfg.getLong("hlf.health.minTimeout");
+		this.maxTimeout = cfg.getLong("hlf.proposal.timeout");
+		this.minSamples = cfg.getInt("hlf.health.minSamples");
+
+		// probe open nodes in the background
+		this.prober = Executors.newSingleThreadScheduledExecutor();
+		this.prober.scheduleWithFixedDelay(this::probeOpenNodes, openInterval, openInterval / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Whether the node may be considered for a call, without claiming it. A half open node is while its trial is free
+	 */
+	public boolean isAvailable(String name) {
+		Node node = nodes.get(name);
+		return node == null || node.isAvailable(System.currentTimeMillis(), openInterval);
+	}
+
+	/**
+	 * Claims the node for a call about to be sent to it. A half open node lets a single trial call through at a time
+	 */
+	public boolean tryAcquire(String name) {
+		Node node = nodes.get(name);
+		return node == null || node.tryAcquire(System.currentTimeMillis(), openInterval);
+	}
+
+	public void record(String name, long latencyMillis, boolean success) {
+		Node node = node(name);
+		if (success) {
+			node.addSample(latencyMillis);
+		}
+		recordOutcome(node, name, success);
+	}
+
+	/**
+	 * Records an outcome without a latency sample, for calls whose latency can't be told per node
+	 */
+	public void recordOutcome(String name, boolean success) {
+		recordOutcome(node(name), name, success);
+	}
+
+	public State getState(String name) {
+		Node node = nodes.get(name);
+		return node == null ? State.CLOSED : node.state;
+	}
+
+	public long getPercentile(String name, double percentile) {
+		Node node = nodes.get(name);
+		return node == null ? -1 : node.percentile(percentile);
+	}
+
+	/**
+	 * Proposal timeout for a call to the given nodes: a multiple of the slowest node's p99,
+	 * or the static timeout while there are too few samples
+	 */
+	public long getProposalTimeout(Collection<String> names) {
+		long timeout = minTimeout;
+		for (String name : names) {
+			Node node = nodes.get(name);
+			if (node == null || node.sampleCount() < minSamples) {
+				return maxTimeout;
+			}
+			timeout = Math.max(timeout, (long) (node.percentile(0.99) * timeoutFactor));
+		}
+		return Math.min(timeout, maxTimeout);
+	}
+
+	public void shutdown() {
+		prober.shutdownNow();
+	}
+
+	private void recordOutcome(Node node, String name, boolean success) {
+		State previous;
+		State current;
+		synchronized (node) {
+			previous = node.state;
+			if (success) {
+				node.consecutiveFailures = 0;
+				node.state = State.CLOSED;
+			} else {
+				node.consecutiveFailures++;
+				if (node.state == State.HALF_OPEN || node.consecutiveFailures >= failureThreshold) {
+					node.state = State.OPEN;
+					node.openedAt = System.currentTimeMillis();
+				}
+			}
+			node.trialStartedAt = 0;
+			current = node.state;
+		}
+		if (previous != current) {
+			log.warn("Node " + name + " circuit breaker is now " + current + " (was " + previous + ")");
+		}
+	}
+
+	private void probeOpenNodes() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+			Node node = entry.getValue();
+			synchronized (node) {
+				if (node.state != State.OPEN || now - node.openedAt < openInterval)
+					continue;
+				node.state = State.HALF_OPEN;
+				node.trialStartedAt = now; // the probe is the trial call
+			}
+
+			Boolean answered;
+			try {
+				answered = probe.probe(entry.getKey());
+			} catch (Exception e) {
+				answered = false;
+			}
+			if (answered == null) {
+				// can't be probed, let the next call be the trial
+				synchronized (node) {
+					node.trialStartedAt = 0;
+				}
+			} else {
+				recordOutcome(node, entry.getKey(), answered);
+			}
+		}
+	}
+
+	private Node node(String name) {
+		return nodes.computeIfAbsent(name, k -> new Node());
+	}
+
+	private static class Node {
+		State state = State.CLOSED;
+		int consecutiveFailures;
+		long openedAt;
+		long trialStartedAt; // 0 when no trial call is out
+		long[] samples = new long[WINDOW];
+		int next;
+		int count;
+
+		synchronized boolean isAvailable(long now, long trialTimeout) {
+			switch (state) {
+				case CLOSED:
+					return true;
+				case HALF_OPEN:
+					// trials that never reported back don't hold the node forever
+					return trialStartedAt == 0 || now - trialStartedAt > trialTimeout;
+				default:
+					return false;
+			}
+		}
+
+		synchronized boolean tryAcquire(long now, long trialTimeout) {
+			if (!isAvailable(now, trialTimeout))
+				return false;
+			if (state == State.HALF_OPEN)
+				trialStartedAt = now;
+			return true;
+		}
+
+		synchronized void addSample(long latencyMillis) {
+			samples[next] = latencyMillis;
+			next = (next + 1) % WINDOW;
+			count = Math.min(count + 1, WINDOW);
+		}
+
+		synchronized int sampleCount() {
+			return count;
+		}
+
+		synchronized long percentile(double percentile) {
+			if (count == 0)
+				return -1;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			return sorted[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)];
+		}
+	}
+
+}
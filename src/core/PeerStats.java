@@ -0,0 +1,65 @@
+package core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hyperledger.fabric.sdk.Peer;
+
+/**
+ * Exponentially weighted latency and error rate of each peer, shared by every channel the peer is on
+ */
+public class PeerStats {
+
+	private static final double ALPHA = 0.2; // weight of the newest sample
+	private static final double ERROR_PENALTY = 10.0; // how much a failing peer is pushed back in the ranking
+
+	private ConcurrentMap<String, Sample> samples; // per peer name
+
+	public PeerStats() {
+		this.samples = new ConcurrentHashMap<String, Sample>();
+	}
+
+	public void record(Peer peer, long latencyMillis, boolean success) {
+		samples.computeIfAbsent(peer.getName(), name -> new Sample()).update(latencyMillis, success);
+	}
+
+	public double getLatency(Peer peer) {
+		Sample sample = samples.get(peer.getName());
+		return sample == null ? 0 : sample.latency;
+	}
+
+	public double getErrorRate(Peer peer) {
+		Sample sample = samples.get(peer.getName());
+		return sample == null ? 0 : sample.errorRate;
+	}
+
+	/**
+	 * Lower is better. Peers never seen score 0, so they get explored first
+	 */
+	public double getScore(Peer peer) {
+		Sample sample = samples.get(peer.getName());
+		if (sample == null)
+			return 0;
+		synchronized (sample) {
+			return sample.latency * (1 + ERROR_PENALTY * sample.errorRate);
+		}
+	}
+
+	private static class Sample {
+		volatile double latency;
+		volatile double errorRate;
+		boolean seen;
+
+		synchronized void update(long latencyMillis, boolean success) {
+			if (!seen) {
+				latency = latencyMillis;
+				errorRate = success ? 0 : 1;
+				seen = true;
+				return;
+			}
+			latency = ALPHA * latencyMillis + (1 - ALPHA) * latency;
+			errorRate = ALPHA * (success ? 0 : 1) + (1 - ALPHA) * errorRate;
+		}
+	}
+
+}
@@ -0,0 +1,220 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+import core.dto.ChaincodeResult;
+
+/**
+ * Bounded LRU cache of query results, keyed by channel, chaincode, function and arguments.
+ *
+ * Entries live for a fixed TTL and are dropped as soon as a block touching their chaincode is seen on the channel.
+ * Identical queries arriving while one is in flight share its result instead of going to the peers again.
+ */
+public class QueryCache {
+
+    private static final Logger log = Logger.getLogger(QueryCache.class);
+
+	private int maxEntries;
+	private long ttl; // millis
+	private LinkedHashMap<List<String>, Entry> entries; // access ordered, eldest is evicted first
+	private ConcurrentMap<String, AtomicLong> generations; // per channel and chaincode, bumped on every invalidation
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	private AtomicLong invalidations;
+
+	public QueryCache(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<List<String>, Entry>(16, 0.75f, true);
+		this.generations = new ConcurrentHashMap<String, AtomicLong>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.invalidations = new AtomicLong();
+	}
+
+	/**
+	 * Returns the cached result of the query, or runs it and caches the result if it succeeds
+	 * and the chaincode was not invalidated meanwhile
+	 */
+	public CompletableFuture<ChaincodeResult> get(String channelName, String chaincodeId, String chaincodeFn, String[] chaincodeArgs, Supplier<CompletableFuture<ChaincodeResult>> query) {
+
+		List<String> key = key(channelName, chaincodeId, chaincodeFn, chaincodeArgs);
+		AtomicLong generation = generation(channelName, chaincodeId);
+		long now = System.currentTimeMillis();
+
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && entry.expiresAt > now && entry.generation == generation.get()) {
+				hits.incrementAndGet();
+				return entry.result;
+			}
+			misses.incrementAndGet();
+
+			// placeholder, so concurrent callers wait on this query instead of sending their own
+			entry = new Entry(new CompletableFuture<ChaincodeResult>(), generation.get(), now + ttl);
+			entries.put(key, entry);
+			evictOverflow();
+		}
+
+		Entry placed = entry;
+		CompletableFuture<ChaincodeResult> pending;
+		try {
+			pending = query.get();
+		} catch (RuntimeException e) {
+			pending = new CompletableFuture<ChaincodeResult>();
+			pending.completeExceptionally(e);
+		}
+		pending.whenComplete((result, t) -> {
+			if (t != null || generation.get() != placed.generation) {
+				// failures and results read before a new block are not kept
+				synchronized (this) {
+					entries.remove(key, placed);
+				}
+			}
+			if (t != null) {
+				placed.result.completeExceptionally(t);
+			} else {
+				placed.result.complete(result);
+			}
+		});
+		return placed.result;
+	}
+
+	/**
+	 * Drops the results of every chaincode written by the block's transactions,
+	 * or of the whole channel if the block can't be read
+	 */
+	public void invalidate(BlockEvent block) {
+
+		String channelName;
+		List<String> chaincodeIds = new ArrayList<String>();
+		try {
+			channelName = block.getChannelId();
+			for (TransactionEvent tx : block.getTransactionEvents()) {
+				for (TransactionActionInfo action : tx.getTransactionActionInfos()) {
+					TxReadWriteSetInfo rwset = action.getTxReadWriteSet();
+					if (rwset == null)
+						continue;
+					for (TxReadWriteSetInfo.NsRwsetInfo ns : rwset.getNsRwsetInfos()) {
+						chaincodeIds.add(ns.getNamespace());
+					}
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Could not read block, dropping every cached query: " + e.getMessage());
+			invalidateAll();
+			return;
+		}
+
+		for (String chaincodeId : chaincodeIds) {
+			invalidate(channelName, chaincodeId);
+		}
+	}
+
+	public void invalidate(String channelName, String chaincodeId) {
+
+		generation(channelName, chaincodeId).incrementAndGet();
+		synchronized (this) {
+			Iterator<List<String>> it = entries.keySet().iterator();
+			while (it.hasNext()) {
+				List<String> key = it.next();
+				if (key.get(0).equals(channelName) && key.get(1).equals(chaincodeId)) {
+					it.remove();
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+
+		for (AtomicLong generation : generations.values()) {
+			generation.incrementAndGet();
+		}
+		synchronized (this) {
+			invalidations.addAndGet(entries.size());
+			entries.clear();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "QueryCache [size=" + size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+				+ ", invalidations=" + invalidations + "]";
+	}
+
+	private void evictOverflow() {
+		Iterator<Map.Entry<List<String>, Entry>> it = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private AtomicLong generation(String channelName, String chaincodeId) {
+		return generations.computeIfAbsent(channelName + "." + chaincodeId, k -> new AtomicLong());
+	}
+
+	private static List<String> key(String channelName, String chaincodeId, String chaincodeFn, String[] chaincodeArgs) {
+		List<String> key = new ArrayList<String>(chaincodeArgs.length + 3);
+		key.add(channelName);
+		key.add(chaincodeId);
+		key.add(chaincodeFn);
+		key.addAll(Arrays.asList(chaincodeArgs));
+		return key;
+	}
+
+	private static class Entry {
+		CompletableFuture<ChaincodeResult> result;
+		long generation;
+		long expiresAt;
+
+		Entry(CompletableFuture<ChaincodeResult> result, long generation, long expiresAt) {
+			this.result = result;
+			this.generation = generation;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
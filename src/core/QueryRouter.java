@@ -0,0 +1,200 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+import core.EndorsementCollector.EndorsementCheck;
+import core.EndorsementCollector.ProposalCall;
+import core.exception.InvalidContractPropertyException;
+
+/**
+ * Routes read-only queries to a few peers instead of all signers, falling back to the next candidate on failure
+ */
+public class QueryRouter {
+
+    private static final Logger log = Logger.getLogger(QueryRouter.class);
+
+	public enum Mode {
+		ALL("all"),
+		SINGLE_FASTEST("single-fastest"),
+		K_RANDOM("k-random");
+
+		private String spec;
+
+		Mode(String spec) {
+			this.spec = spec;
+		}
+
+		public static Mode fromSpec(String spec) throws InvalidContractPropertyException {
+			for (Mode mode : values()) {
+				if (mode.spec.equals(spec.trim()))
+					return mode;
+			}
+			throw new InvalidContractPropertyException("Unknown query routing on contract (known are 'all', 'single-fastest' and 'k-random')");
+		}
+	}
+
+	public static class Policy {
+		private Mode mode;
+		private int peers; // how many peers answer a k-random query
+
+		public Policy(Mode mode, int peers) {
+			this.mode = mode;
+			this.peers = mode == Mode.SINGLE_FASTEST ? 1 : peers;
+		}
+
+		public Mode getMode() {
+			return mode;
+		}
+
+		public int getPeers() {
+			return peers;
+		}
+	}
+
+	private PeerStats stats;
+
+	public QueryRouter(PeerStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Sends the query to as many candidates as needed, picked by the policy, replacing each failed one with the next candidate.
+	 * The policy only picks which peers are asked, the caller decides how many endorsements it needs, and only those that
+	 * pass its check count. The future holds every response gathered, it is up to the caller to check if enough succeeded
+	 */
+	public CompletableFuture<Collection<ProposalResponse>> route(Collection<Peer> peers, Policy policy, int needed, ProposalCall call, EndorsementCheck check, ExecutorService executor) {
+
+		List<Peer> candidates = rank(peers, policy.getMode());
+		RoutedQuery query = new RoutedQuery(candidates, Math.min(needed, candidates.size()), call, check, executor);
+		query.start();
+		return query.result;
+	}
+
+	private List<Peer> rank(Collection<Peer> peers, Mode mode) {
+		List<Peer> candidates = new ArrayList<Peer>(peers);
+		// the fastest first, when more than one is needed the next fastest follow
+		if (mode == Mode.SINGLE_FASTEST) {
+			candidates.sort(Comparator.comparingDouble(stats::getScore));
+		} else {
+			Collections.shuffle(candidates, ThreadLocalRandom.current());
+		}
+		return candidates;
+	}
+
+	private static class RoutedQuery {
+		List<Peer> candidates;
+		int needed;
+		ProposalCall call;
+		EndorsementCheck check;
+		ExecutorService executor;
+		int next;
+		int inFlight;
+		int successful; // answered successfully, not yet checked
+		int arrivals;
+		List<ProposalResponse> responses;
+		CompletableFuture<Collection<ProposalResponse>> result;
+
+		RoutedQuery(List<Peer> candidates, int needed, ProposalCall call, EndorsementCheck check, ExecutorService executor) {
+			this.candidates = candidates;
+			this.needed = needed;
+			this.call = call;
+			this.check = check;
+			this.executor = executor;
+			this.responses = new ArrayList<ProposalResponse>();
+			this.result = new CompletableFuture<Collection<ProposalResponse>>();
+		}
+
+		void start() {
+			if (needed == 0) {
+				result.complete(responses);
+				return;
+			}
+			for (int i = 0; i < needed; i++) {
+				sendToNext();
+			}
+		}
+
+		private void sendToNext() {
+			Peer peer;
+			synchronized (this) {
+				if (next >= candidates.size())
+					return;
+				peer = candidates.get(next++);
+				inFlight++;
+			}
+			executor.submit(() -> {
+				Collection<ProposalResponse> rsps = null;
+				try {
+					rsps = call.send(peer);
+				} catch (Exception e) {
+					log.warn("Query to peer " + peer.getName() + " failed, falling back: " + e.getMessage());
+				}
+				received(rsps);
+			});
+		}
+
+		private void received(Collection<ProposalResponse> rsps) {
+			List<ProposalResponse> checked = null;
+			int arrival;
+			int answered;
+			synchronized (this) {
+				inFlight--;
+				if (rsps != null) {
+					for (ProposalResponse rsp : rsps) {
+						responses.add(rsp);
+						if (rsp.getStatus() == ProposalResponse.Status.SUCCESS)
+							successful++;
+					}
+				}
+				arrival = ++arrivals;
+				answered = successful;
+				
+				// checked once there may be enough, until then the successful answers are the most that can count
+				if (successful >= needed)
+					checked = new ArrayList<ProposalResponse>(responses);
+			}
+
+			if (checked == null) {
+				decide(arrival, answered);
+			} else {
+				check.endorsements(checked).whenComplete((valid, t) -> decide(arrival, t == null ? valid.size() : 0));
+			}
+		}
+
+		private void decide(int arrival, int endorsed) {
+			int fallbacks = 0;
+			List<ProposalResponse> decision = null;
+			synchronized (this) {
+				// a later answer makes its own decision
+				if (result.isDone() || arrival != arrivals)
+					return;
+
+				if (endorsed >= needed || (inFlight == 0 && next >= candidates.size())) {
+					decision = new ArrayList<ProposalResponse>(responses);
+				} else {
+					// peers still answering may make up part of the difference
+					fallbacks = needed - endorsed - inFlight;
+				}
+			}
+
+			if (decision != null) {
+				result.complete(decision);
+			}
+			for (int i = 0; i < fallbacks; i++) {
+				sendToNext();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,303 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+/**
+ * Sends endorsed transactions to the orderers, healthiest first.
+ *
+ * In failover mode an orderer is only tried when the previous one rejects the transaction. In hedged mode the next
+ * orderer is also tried when the current one takes longer than its usual latency to accept it. Every submission of
+ * a transaction shares a single commit future, keyed by transaction id, completed by the first valid commit.
+ *
+ * A hedge sends the same envelope, so once one orderer got it through the others turn their copy down with
+ * DUPLICATE_TXID. That rejection says nothing about the orderer's health and isn't recorded as a failure.
+ */
+public class TransactionBroadcaster {
+
+    private static final Logger log = Logger.getLogger(TransactionBroadcaster.class);
+
+	public enum Mode {
+		FAILOVER("failover"),
+		HEDGED("hedged");
+
+		private String spec;
+
+		Mode(String spec) {
+			this.spec = spec;
+		}
+
+		public static Mode fromSpec(String spec) throws IllegalArgumentException {
+			for (Mode mode : values()) {
+				if (mode.spec.equals(spec.trim()))
+					return mode;
+			}
+			throw new IllegalArgumentException("Unknown hlf.ordering.mode: " + spec + " (known are 'failover' and 'hedged')");
+		}
+	}
+
+	private Mode mode;
+	private long hedgeDelay; // millis, lower bound for the hedging threshold
+	private NodeHealth health;
+	private ExecutorService executor; // runs the blocking broadcasts
+	private ScheduledExecutorService hedger;
+	private ConcurrentMap<String, Broadcast> broadcasts; // in flight, per transaction id
+	private ConcurrentMap<String, OrdererCounters> counters; // per orderer name
+
+	public TransactionBroadcaster(Configuration cfg, NodeHealth health, ExecutorService executor) throws IllegalArgumentException {
+		this.mode = Mode.fromSpec(cfg.getString("hlf.ordering.mode"));
+		this.hedgeDelay = cfg.getLong("hlf.ordering.hedgeDelay");
+		this.health = health;
+		this.executor = executor;
+		this.hedger = Executors.newSingleThreadScheduledExecutor();
+		this.broadcasts = new ConcurrentHashMap<String, Broadcast>();
+		this.counters = new ConcurrentHashMap<String, OrdererCounters>();
+	}
+
+	/**
+	 * Orders the endorsed transaction. The future completes on its first valid commit,
+	 * or fails once every submission was rejected or failed to commit
+	 */
+	public CompletableFuture<TransactionEvent> broadcast(ChannelView view, Collection<ProposalResponse> endorsements) {
+
+		String txId = endorsements.iterator().next().getTransactionID();
+
+		// healthy orderers only, fastest median first. each is claimed once it's actually sent to
+		List<Orderer> candidates = new ArrayList<Orderer>();
+		for (Orderer orderer : view.getOrderers()) {
+			if (health.isAvailable(orderer.getName())) {
+				candidates.add(orderer);
+			}
+		}
+		candidates.sort(Comparator.comparingLong(orderer -> health.getPercentile(orderer.getName(), 0.5)));
+
+		Broadcast created = new Broadcast(txId, view, endorsements, candidates);
+		Broadcast broadcast = broadcasts.putIfAbsent(txId, created);
+		if (broadcast != null) {
+			// already being ordered, share its commit
+			return broadcast.result;
+		}
+		created.result.whenComplete((te, t) -> broadcasts.remove(txId, created));
+		created.launchNext();
+		return created.result;
+	}
+
+	public Map<String, OrdererCounters> getCounters() {
+		return Collections.unmodifiableMap(counters);
+	}
+
+	public void shutdown() {
+		hedger.shutdownNow();
+	}
+
+	private OrdererCounters counters(Orderer orderer) {
+		return counters.computeIfAbsent(orderer.getName(), name -> new OrdererCounters());
+	}
+
+	private class Broadcast {
+		String txId;
+		ChannelView view;
+		Collection<ProposalResponse> endorsements;
+		List<Orderer> candidates;
+		int next;
+		int inFlight; // submissions yet to be accepted or committed
+		boolean accepted;
+		Throwable lastError;
+		CompletableFuture<TransactionEvent> result;
+
+		Broadcast(String txId, ChannelView view, Collection<ProposalResponse> endorsements, List<Orderer> candidates) {
+			this.txId = txId;
+			this.view = view;
+			this.endorsements = endorsements;
+			this.candidates = candidates;
+			this.result = new CompletableFuture<TransactionEvent>();
+			this.lastError = new RuntimeException("No orderer available! Total: " + view.getOrderers().size());
+		}
+
+		void launchNext() {
+			Orderer orderer;
+			boolean exhausted = false;
+			synchronized (this) {
+				if (accepted || result.isDone())
+					return;
+				orderer = claimNext();
+				if (orderer == null) {
+					exhausted = inFlight == 0;
+				} else {
+					inFlight++;
+				}
+			}
+			if (exhausted) {
+				result.completeExceptionally(lastError);
+				return;
+			}
+			if (orderer == null)
+				return;
+
+			if (mode == Mode.HEDGED && next < candidates.size()) {
+				// usual acceptance latency of this orderer, but never below the configured delay
+				long threshold = Math.max(hedgeDelay, health.getPercentile(orderer.getName(), 0.95));
+				hedger.schedule(() -> hedge(orderer), threshold, TimeUnit.MILLISECONDS);
+			}
+			executor.submit(() -> submit(orderer));
+		}
+
+		// a half open orderer whose trial was claimed meanwhile is skipped
+		private Orderer claimNext() {
+			while (next < candidates.size()) {
+				Orderer candidate = candidates.get(next++);
+				if (health.tryAcquire(candidate.getName()))
+					return candidate;
+			}
+			return null;
+		}
+
+		private void hedge(Orderer slow) {
+			synchronized (this) {
+				if (accepted || result.isDone())
+					return;
+			}
+			log.info("Orderer " + slow.getName() + " is slow on transaction " + txId + ", hedging to the next one...");
+			counters(slow).hedged.incrementAndGet();
+			launchNext();
+		}
+
+		private void submit(Orderer orderer) {
+
+			// the broadcast itself is synchronous, the future then waits for the commit event
+			long start = System.currentTimeMillis();
+			CompletableFuture<TransactionEvent> commit;
+			try {
+				commit = view.getChannel().sendTransaction(
+						endorsements,
+						Channel.TransactionOptions.createTransactionOptions()
+							.orderers(orderer)
+							.userContext(view.getClient().getUserContext())
+				);
+			} catch (Exception e) {
+				commit = new CompletableFuture<TransactionEvent>();
+				commit.completeExceptionally(e);
+			}
+			long elapsed = System.currentTimeMillis() - start;
+
+			boolean acceptedHere = !commit.isCompletedExceptionally();
+			OrdererCounters ordererCounters = counters(orderer);
+			if (!acceptedHere && isDuplicate(commit.handle((te, t) -> t).join())) {
+				// a hedged copy of a transaction another orderer already took, the orderer is fine
+				ordererCounters.duplicates.incrementAndGet();
+				health.recordOutcome(orderer.getName(), true);
+				log.info("Orderer " + orderer.getName() + " already has transaction " + txId);
+				commit.whenComplete((te, t) -> failed(t));
+				return;
+			}
+			health.record(orderer.getName(), elapsed, acceptedHere);
+			ordererCounters.latencyTotal.addAndGet(elapsed);
+			if (acceptedHere) {
+				ordererCounters.accepted.incrementAndGet();
+				synchronized (this) {
+					accepted = true;
+				}
+				commit.whenComplete((te, t) -> committed(orderer, te, t));
+			} else {
+				ordererCounters.rejected.incrementAndGet();
+				log.warn("Orderer " + orderer.getName() + " did not accept transaction " + txId + ", failing over...");
+				commit.whenComplete((te, t) -> failed(t));
+			}
+		}
+
+		private void committed(Orderer orderer, TransactionEvent te, Throwable t) {
+			if (t == null) {
+				counters(orderer).committed.incrementAndGet();
+				// duplicate commits of a hedged transaction are dropped here
+				result.complete(te);
+				return;
+			}
+			failed(t);
+		}
+
+		private void failed(Throwable t) {
+			boolean failover;
+			boolean done;
+			synchronized (this) {
+				inFlight--;
+				lastError = t;
+				// once accepted, a new orderer could order the transaction twice
+				failover = !accepted && next < candidates.size();
+				done = inFlight == 0 && !failover;
+			}
+			if (failover) {
+				launchNext();
+			} else if (done) {
+				result.completeExceptionally(t);
+			}
+		}
+	}
+
+	private static boolean isDuplicate(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause.getMessage() != null && cause.getMessage().contains("DUPLICATE_TXID"))
+				return true;
+		}
+		return false;
+	}
+
+	public static class OrdererCounters {
+		AtomicLong accepted = new AtomicLong();
+		AtomicLong rejected = new AtomicLong();
+		AtomicLong duplicates = new AtomicLong(); // hedged copies turned down, another orderer had the transaction
+		AtomicLong committed = new AtomicLong();
+		AtomicLong hedged = new AtomicLong(); // times a hedge was sent because this orderer was slow
+		AtomicLong latencyTotal = new AtomicLong(); // millis spent on broadcasts
+
+		public long getAccepted() {
+			return accepted.get();
+		}
+
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		public long getDuplicates() {
+			return duplicates.get();
+		}
+
+		public long getCommitted() {
+			return committed.get();
+		}
+
+		public long getHedged() {
+			return hedged.get();
+		}
+
+		public double getAverageLatency() {
+			long calls = accepted.get() + rejected.get();
+			return calls == 0 ? 0 : (double) latencyTotal.get() / calls;
+		}
+
+		@Override
+		public String toString() {
+			return "OrdererCounters [accepted=" + accepted + ", rejected=" + rejected + ", duplicates=" + duplicates + ", committed=" + committed
+					+ ", hedged=" + hedged + ", averageLatency=" + getAverageLatency() + "]";
+		}
+	}
+
+}
@@ -24,6 +24,14 @@ public class ChaincodeResult {
 		this.signatures = signatures;
 	}
 	
+	// for transaction invocation whose chaincode answer is needed too, e.g. batches
+	public ChaincodeResult(int status, String content, Date timestamp, List<ByteString> signatures) {
+		this.status = status;
+		this.content = content;
+		this.timestamp = timestamp;
+		this.signatures = signatures;
+	}
+	
 	// mostly for querying where we want to see results
 	public ChaincodeResult(int status, String content, List<ByteString> signatures) {
 		this.status = status;
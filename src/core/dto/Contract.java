@@ -1,6 +1,10 @@
 package core.dto;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,58 +12,100 @@ import java.util.Map;
 import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
+/**
+ * A contract as read from the blockchain or the db. Contracts are shared through the cache, so they are never
+ * changed: signing one gives a new signed copy, which replaces it
+ */
 public class Contract {
 	
-	private String rawContract;
-	private Map<String,?> attributes;
-	private boolean isSection;
-	private String signature;
+	// readers and writers are immutable and thread-safe, so every contract shares them
+	private static final ObjectReader ATTRIBUTES_READER = new ObjectMapper().readerFor(HashMap.class);
+	private static final ObjectReader TREE_READER = new ObjectMapper().configure(Feature.ALLOW_UNQUOTED_CONTROL_CHARS, true).reader();
+	private static final ObjectWriter PRETTY_WRITER = new ObjectMapper().writerWithDefaultPrettyPrinter();
+	
+	private final String rawContract;
+	private final Map<String,?> attributes;
+	private final boolean isSection;
+	private final String signature;
+	
+	// parsed once, on first use
+	private Contract extendedProperties;
+	private Contract applicationProperties;
+	private String prettyPrint;
+	private String digest; // base64 SHA-256 of the raw contract, what clients sign. always computed here, never taken from storage
 	
 	public Contract(Map<String, ?> attributes) {
+		this.rawContract = null;
 		this.attributes = attributes;
 		this.isSection = true;
+		this.signature = null;
 	}
 	
 	public Contract(String rawJsonContract) {
 		this(rawJsonContract, null);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public Contract(String rawJsonContract, String rawJsonSignature) {
-		// read json and put into an hashmap
-		ObjectMapper om = new ObjectMapper();
+		this(rawJsonContract, readAttributes(rawJsonContract), parseSignature(rawJsonSignature));
+	}
+	
+	private Contract(String rawJsonContract, Map<String, ?> attributes, String signature) {
+		this.rawContract = attributes != null ? rawJsonContract : null;
+		this.attributes = attributes;
+		this.isSection = false;
+		this.signature = signature;
+	}
+	
+	// read json and put into an hashmap
+	private static Map<String, ?> readAttributes(String rawJsonContract) {
 		try {
-			attributes = om.readValue(rawJsonContract, HashMap.class);
-			this.isSection = false;
-			this.rawContract = rawJsonContract;
+			return ATTRIBUTES_READER.readValue(rawJsonContract);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
-		
-		// set signature
-		setSignature(rawJsonSignature);
 	}
 	
-	public void setSignature(String rawJsonSignature) {
+	/**
+	 * The signature in a {"signature": ...} document, as the contract's chaincode answers it
+	 */
+	public static String parseSignature(String rawJsonSignature) {
 		if (rawJsonSignature != null && !rawJsonSignature.isEmpty()) {
-			ObjectMapper om = new ObjectMapper();
 			try {
-				this.signature = (String) om.readValue(rawJsonSignature, HashMap.class).get("signature");
+				return (String) ATTRIBUTES_READER.<Map<String, ?>>readValue(rawJsonSignature).get("signature");
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+		return null;
+	}
+	
+	/**
+	 * The same contract, signed with the given signature (or unsigned, if null)
+	 */
+	public Contract withSignature(String signature) {
+		return new Contract(rawContract, attributes, signature);
 	}
 	
 	@SuppressWarnings("unchecked")
-	public Contract getExtendedContractProperties() {
-		return new Contract((Map<String,?>) attributes.get("extended-contract-properties"));
+	public synchronized Contract getExtendedContractProperties() {
+		if (extendedProperties == null)
+			extendedProperties = new Contract((Map<String,?>) attributes.get("extended-contract-properties"));
+		return extendedProperties;
 	}
 	
 	@SuppressWarnings("unchecked")
-	public Contract getApplicationSpecificProperties() {
-		return new Contract((Map<String,?>) attributes.get("application-specific-properties"));
+	public synchronized Contract getApplicationSpecificProperties() {
+		if (applicationProperties == null)
+			applicationProperties = new Contract((Map<String,?>) attributes.get("application-specific-properties"));
+		return applicationProperties;
+	}
+	
+	public boolean hasContractAttr(String key) {
+		return attributes.containsKey(key);
 	}
 	
 	public String getContractStringAttr(String key) {
@@ -87,11 +133,19 @@ public class Contract {
 		return rawContract;
 	}
 	
-	public void sign(String signature) {
-		this.signature = signature;
+	public synchronized String getDigest() {
+		if (digest == null && rawContract != null) {
+			try {
+				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				md.update(rawContract.getBytes(StandardCharsets.UTF_8));
+				digest = new String(Base64.getEncoder().encode(md.digest()));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+		return digest;
 	}
 	
-	
 	public String getSignature() {
 		return signature;
 	}
@@ -100,19 +154,19 @@ public class Contract {
 		return signature.getBytes();
 	}
 	
-	public String getPrettyPrintRepresentation() {
+	public synchronized String getPrettyPrintRepresentation() {
+		
+		if (prettyPrint != null)
+			return prettyPrint;
 		
-		String result = null;
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(Feature.ALLOW_UNQUOTED_CONTROL_CHARS, true);
 		try {
-			JsonNode resultObject = mapper.readTree(rawContract);
-			result = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(resultObject);
+			JsonNode resultObject = TREE_READER.readTree(rawContract);
+			prettyPrint = PRETTY_WRITER.writeValueAsString(resultObject);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
-		return result;
+		return prettyPrint;
 	}
 	
 	
@@ -0,0 +1,51 @@
+package core.dto;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Optional call policies a contract declares in its extended properties, compiled once per contract version
+ */
+public final class ContractPolicies {
+
+	private final String queryRouting; // null for the hub's default
+	private final int queryRoutingPeers;
+	private final int[] sequencingKeys; // argument indices of the state key, null when not sequenced
+	private final Set<String> batchFunctions; // null when not batched
+	private final String batchEntryPoint;
+	private final boolean queryCache;
+
+	public ContractPolicies(String queryRouting, int queryRoutingPeers, int[] sequencingKeys, Set<String> batchFunctions, String batchEntryPoint, boolean queryCache) {
+		this.queryRouting = queryRouting;
+		this.queryRoutingPeers = queryRoutingPeers;
+		this.sequencingKeys = sequencingKeys == null ? null : sequencingKeys.clone();
+		this.batchFunctions = batchFunctions == null ? null : Collections.unmodifiableSet(batchFunctions);
+		this.batchEntryPoint = batchEntryPoint;
+		this.queryCache = queryCache;
+	}
+
+	public String getQueryRouting() {
+		return queryRouting;
+	}
+
+	public int getQueryRoutingPeers() {
+		return queryRoutingPeers;
+	}
+
+	public int[] getSequencingKeys() {
+		return sequencingKeys == null ? null : sequencingKeys.clone();
+	}
+
+	public Set<String> getBatchFunctions() {
+		return batchFunctions;
+	}
+
+	public String getBatchEntryPoint() {
+		return batchEntryPoint;
+	}
+
+	public boolean isQueryCache() {
+		return queryCache;
+	}
+
+}
@@ -1,21 +1,31 @@
 package core.dto;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.HashSet;
 import java.util.Set;
 
 import javax.xml.bind.DatatypeConverter;
 
+import org.apache.log4j.Logger;
 import org.hyperledger.fabric.sdk.Enrollment;
 import org.hyperledger.fabric.sdk.User;
 
@@ -26,6 +36,8 @@ import org.hyperledger.fabric.sdk.User;
  */
 public class HLFUser implements User, Serializable {
 
+    private static final Logger log = Logger.getLogger(HLFUser.class);
+
 	private static final long serializationId = 1L;
 	private static final long serialVersionUID = -6287264119837208213L;
 
@@ -113,37 +125,135 @@ public class HLFUser implements User, Serializable {
                 '}';
     }
     
+    /**
+     * Reloads the key and certificate whenever their files change, e.g. when the credentials rotate.
+     * A reload that fails, or finds a key that doesn't match the certificate, keeps the current ones
+     */
+    public void watchCredentials() throws IOException {
+    	if (!(enrollment instanceof CachedEnrollment))
+    		throw new IllegalStateException("User " + name + " wasn't enrolled from files");
+    	((CachedEnrollment) enrollment).watch();
+    }
+    
     private Enrollment getEnrollmentFromCertPath(String certPath, String keyPath) {
-	    return new Enrollment() {
-	
-	        @Override
-	        public PrivateKey getKey() {
-	            try {
-	                return loadPrivateKey(Paths.get(keyPath));
-	            } catch (Exception e) {
-	                return null;
-	            }
-	        }
-	
-	        @Override
-	        public String getCert() {
-	            try {
-	            	return new String(Files.readAllBytes(Paths.get(certPath)));
-	            } catch (Exception e) {
-	                return "";
-	            }
-	        }
-	
-	    };
+    	CachedEnrollment cached = new CachedEnrollment(Paths.get(certPath), Paths.get(keyPath));
+    	try {
+    		cached.reload();
+    	} catch (IOException | GeneralSecurityException e) {
+    		throw new IllegalStateException("Could not load the credentials of user " + name, e);
+    	}
+	    return cached;
+    }
+    
+    /**
+     * Key and certificate read once and kept in memory, the SDK asks for them on every proposal it signs
+     */
+    private static class CachedEnrollment implements Enrollment, Serializable {
+    	
+		private static final long serialVersionUID = 1L;
+
+		private Path certPath;
+    	private Path keyPath;
+    	private volatile Credentials current; // swapped as a whole, so key and cert always match
+    	private transient Thread watcher;
+    	
+    	CachedEnrollment(Path certPath, Path keyPath) {
+    		this.certPath = certPath;
+    		this.keyPath = keyPath;
+    	}
+
+        @Override
+        public PrivateKey getKey() {
+        	return current.key;
+        }
+
+        @Override
+        public String getCert() {
+        	return current.cert;
+        }
+        
+        void reload() throws IOException, GeneralSecurityException {
+        	
+        	PrivateKey key = loadPrivateKey(keyPath);
+        	String cert = new String(Files.readAllBytes(certPath));
+        	
+        	// files rotated one at a time may be caught halfway, a key must sign what its cert verifies
+        	X509Certificate crt = (X509Certificate) CertificateFactory.getInstance("X.509")
+        			.generateCertificate(new ByteArrayInputStream(cert.getBytes()));
+        	byte[] probe = crt.getSerialNumber().toByteArray();
+        	Signature signer = Signature.getInstance("SHA256withECDSA", "BC");
+        	signer.initSign(key);
+        	signer.update(probe);
+        	Signature verifier = Signature.getInstance("SHA256withECDSA", "BC");
+        	verifier.initVerify(crt.getPublicKey());
+        	verifier.update(probe);
+        	if (!verifier.verify(signer.sign()))
+        		throw new GeneralSecurityException("Key " + keyPath + " doesn't match certificate " + certPath);
+        	
+        	current = new Credentials(key, cert);
+        }
+        
+        synchronized void watch() throws IOException {
+        	if (watcher != null)
+        		return;
+        	
+        	WatchService watchService = FileSystems.getDefault().newWatchService();
+        	Set<Path> dirs = new HashSet<Path>();
+        	dirs.add(certPath.toAbsolutePath().getParent());
+        	dirs.add(keyPath.toAbsolutePath().getParent());
+        	for (Path dir : dirs) {
+        		dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        	}
+        	
+        	watcher = new Thread(() -> {
+        		while (!Thread.currentThread().isInterrupted()) {
+        			WatchKey key;
+        			try {
+        				key = watchService.take();
+        			} catch (InterruptedException e) {
+        				return;
+        			}
+        			boolean changed = false;
+        			for (WatchEvent<?> event : key.pollEvents()) {
+        				Object file = event.context();
+        				changed |= file == null || file.equals(certPath.getFileName()) || file.equals(keyPath.getFileName());
+        			}
+        			key.reset();
+        			if (!changed)
+        				continue;
+        			try {
+        				reload();
+        				log.info("Reloaded credentials from " + certPath + " and " + keyPath);
+        			} catch (IOException | GeneralSecurityException | RuntimeException e) {
+        				log.error("Could not reload credentials from " + certPath + " and " + keyPath + ", keeping the current ones: " + e.getMessage());
+        			}
+        		}
+        	}, "credentials-watcher");
+        	watcher.setDaemon(true);
+        	watcher.start();
+        }
+        
+        @Override
+        public String toString() {
+        	return "CachedEnrollment{cert=" + certPath + ", key=" + keyPath + "}";
+        }
+    }
+    
+    private static class Credentials implements Serializable {
+    	
+		private static final long serialVersionUID = 1L;
+		
+		final PrivateKey key;
+    	final String cert;
+    	
+    	Credentials(PrivateKey key, String cert) {
+    		this.key = key;
+    		this.cert = cert;
+    	}
     }
     
     private static PrivateKey loadPrivateKey(Path fileName) throws IOException, GeneralSecurityException {
-        PrivateKey key = null;
-        InputStream is = null;
-        BufferedReader br  = null;
-        try {
-            is = new FileInputStream(fileName.toString());
-             br = new BufferedReader(new InputStreamReader(is));
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName.toString())))) {
             StringBuilder builder = new StringBuilder();
             boolean inKey = false;
             for (String line = br.readLine(); line != null; line = br.readLine()) {
@@ -160,14 +270,12 @@ public class HLFUser implements User, Serializable {
                     builder.append(line);
                 }
             }
+            if (builder.length() == 0)
+            	throw new GeneralSecurityException("No private key in " + fileName);
             byte[] encoded = DatatypeConverter.parseBase64Binary(builder.toString());
             PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(encoded);
             KeyFactory kf = KeyFactory.getInstance("ECDSA", "BC");
-            key = kf.generatePrivate(keySpec);
-        } finally {
-            br.close();
-            is.close();
+            return kf.generatePrivate(keySpec);
         }
-        return key;
     }
 }
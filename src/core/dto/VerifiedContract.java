@@ -0,0 +1,78 @@
+package core.dto;
+
+import util.NodeConnection;
+
+/**
+ * Outcome of verifying a contract, compiled once per contract version: what the hub needs to run it
+ * without parsing its specification again. Only the validity state changes afterwards
+ */
+public final class VerifiedContract {
+
+	public static final int STATE_PENDING = 0; // validity is yet to start
+	public static final int STATE_ACTIVE = 1;
+	public static final int STATE_EXPIRED = 2;
+
+	private final String channel;
+	private final String contractId;
+	private final String signatureType;
+	private final NodeConnection[] nodes; // signing and consensus nodes
+	private final long validFrom; // epoch millis
+	private final long expiresOn; // epoch millis
+	private final ContractPolicies policies;
+	private volatile int state; // flipped by the validity scheduler at each bound
+
+	public VerifiedContract(String channel, String contractId, String signatureType, NodeConnection[] nodes, long validFrom, long expiresOn, ContractPolicies policies) {
+		this.channel = channel;
+		this.contractId = contractId;
+		this.signatureType = signatureType;
+		this.nodes = nodes.clone();
+		this.validFrom = validFrom;
+		this.expiresOn = expiresOn;
+		this.policies = policies;
+		this.state = stateAt(System.currentTimeMillis());
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public String getContractId() {
+		return contractId;
+	}
+
+	public String getSignatureType() {
+		return signatureType;
+	}
+
+	// shared, callers must not change it
+	public NodeConnection[] getNodes() {
+		return nodes;
+	}
+
+	public ContractPolicies getPolicies() {
+		return policies;
+	}
+
+	public long getValidFrom() {
+		return validFrom;
+	}
+
+	public long getExpiresOn() {
+		return expiresOn;
+	}
+
+	public int getState() {
+		return state;
+	}
+
+	public void setState(int state) {
+		this.state = state;
+	}
+
+	public int stateAt(long millis) {
+		if (millis >= expiresOn)
+			return STATE_EXPIRED;
+		return millis < validFrom ? STATE_PENDING : STATE_ACTIVE;
+	}
+
+}
@@ -0,0 +1,18 @@
+package core.exception;
+
+/**
+ * An invoke that failed before its transaction was sent to ordering, so it had no effect on the ledger
+ */
+public class EndorsementException extends RuntimeException {
+
+	private static final long serialVersionUID = 4620193727835417305L;
+
+	public EndorsementException(String message) {
+		super(message);
+	}
+
+	public EndorsementException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
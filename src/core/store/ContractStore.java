@@ -0,0 +1,52 @@
+package core.store;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import core.dto.VerifiedContract;
+
+/**
+ * Where the hub keeps the contracts it has loaded and the outcome of verifying them, keyed by channel and contract id
+ */
+public interface ContractStore {
+
+	/**
+	 * Stored contract, or null if there's none for the channel and contract id
+	 */
+	public StoredContract load(String channel, String cid);
+
+	/**
+	 * Every stored contract, verified or not
+	 */
+	public List<StoredContract> loadAll();
+
+	/**
+	 * Saves (or replaces) the contract, keeping its verification if there's one.
+	 * The returned future completes once the contract is stored, stores that write behind complete it later
+	 */
+	public CompletableFuture<Void> saveContract(String channel, String cid, String contract, String digest, String signature);
+
+	/**
+	 * Someone waits on a save: stores that write behind write what's queued now rather than later
+	 */
+	public default void flushQueued() {
+	}
+
+	/**
+	 * Saves (or replaces) several contracts at once, keeping their verifications
+	 */
+	public void saveContracts(List<StoredContract> contracts);
+
+	/**
+	 * Saves (or replaces) the verification of an already saved contract
+	 */
+	public void saveVerification(VerifiedContract verified);
+
+	/**
+	 * Drops the verification of a contract, so it's verified again on its next call
+	 */
+	public void clearVerification(String channel, String cid);
+
+	public void close();
+
+}
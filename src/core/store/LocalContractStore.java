@@ -0,0 +1,362 @@
+package core.store;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import core.dto.VerifiedContract;
+import util.NodeConnection;
+
+/**
+ * Embedded contract store for single hub deployments: an append only log in a memory mapped file, with an
+ * in-memory index of where the latest record of each contract is.
+ *
+ * Every save appends the whole record, as [length][crc32][json]. The length is written last, so a record
+ * torn by a crash fails its checksum and the log is read up to it. Superseded records are dropped when the
+ * store is opened and after writes, once the log outgrew its initial size and they take more than compactRatio
+ * times the space of the live ones, so the log stays well within its 2 GB of int offsets.
+ */
+public class LocalContractStore implements ContractStore {
+
+    private static final Logger log = Logger.getLogger(LocalContractStore.class);
+
+	private static final int HEADER_SIZE = 8; // length and crc32
+
+	private File file;
+	private int initialSize;
+	private double compactRatio; // superseded bytes per live byte that trigger a compaction
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int position; // end of the log
+	private int liveBytes; // taken by the latest record of each contract
+	private Map<String, Integer> index; // offset of each contract's latest record
+	private ObjectReader reader;
+	private ObjectWriter writer;
+
+	public LocalContractStore(Configuration cfg) throws IOException {
+		this.file = new File(cfg.getString("store.local.path"));
+		this.initialSize = cfg.getInt("store.local.initialSize");
+		this.compactRatio = cfg.getDouble("store.local.compactRatio");
+		ObjectMapper mapper = new ObjectMapper();
+		this.reader = mapper.readerFor(Map.class);
+		this.writer = mapper.writer();
+
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		open();
+		if (isWasteful()) {
+			compact();
+		}
+		log.info("Opened contract log " + file + " with " + index.size() + " contracts");
+	}
+
+	@Override
+	public synchronized StoredContract load(String channel, String cid) {
+		Integer offset = index.get(key(channel, cid));
+		return offset == null ? null : toStoredContract(read(offset));
+	}
+
+	@Override
+	public synchronized List<StoredContract> loadAll() {
+		List<StoredContract> all = new ArrayList<StoredContract>(index.size());
+		for (int offset : index.values()) {
+			all.add(toStoredContract(read(offset)));
+		}
+		return all;
+	}
+
+	@Override
+	public synchronized CompletableFuture<Void> saveContract(String channel, String cid, String contract, String digest, String signature) {
+		appendContract(channel, cid, contract, digest, signature);
+		buffer.force();
+		compactIfWasteful();
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public synchronized void saveContracts(List<StoredContract> contracts) {
+		for (StoredContract contract : contracts) {
+			appendContract(contract.getChannel(), contract.getContractId(), contract.getContract(), contract.getDigest(), contract.getSignature());
+		}
+		// one sync for the whole batch
+		buffer.force();
+		compactIfWasteful();
+	}
+
+	@Override
+	public synchronized void saveVerification(VerifiedContract verified) {
+
+		List<Map<String, Object>> nodes = new ArrayList<Map<String, Object>>(verified.getNodes().length);
+		for (NodeConnection node : verified.getNodes()) {
+			Map<String, Object> nodeObj = new LinkedHashMap<String, Object>();
+			nodeObj.put("type", node.type);
+			nodeObj.put("name", node.name);
+			nodeObj.put("host", node.host);
+			nodeObj.put("port", node.port);
+			nodeObj.put("eventHubPort", node.eventHubPort);
+			nodeObj.put("tlsCrtPath", node.tlsCrtPath);
+			nodes.add(nodeObj);
+		}
+
+		Map<String, Object> verification = new LinkedHashMap<String, Object>();
+		verification.put("signatureType", verified.getSignatureType());
+		verification.put("validFrom", verified.getValidFrom());
+		verification.put("expiresOn", verified.getExpiresOn());
+		verification.put("nodes", nodes);
+
+		Map<String, Object> record = latest(verified.getChannel(), verified.getContractId());
+		record.put("verification", verification);
+		append(verified.getChannel(), verified.getContractId(), record);
+		buffer.force();
+		compactIfWasteful();
+	}
+
+	@Override
+	public synchronized void clearVerification(String channel, String cid) {
+		Integer offset = index.get(key(channel, cid));
+		if (offset == null)
+			return;
+		Map<String, Object> record = read(offset);
+		if (record.remove("verification") == null)
+			return;
+		append(channel, cid, record);
+		buffer.force();
+		compactIfWasteful();
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			buffer.force();
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), initialSize));
+		index = new HashMap<String, Integer>();
+
+		// read the log up to its end, or up to a torn record
+		position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity())
+				break;
+			byte[] payload = payload(position, length);
+			if (checksum(payload) != buffer.getInt(position + 4)) {
+				log.warn("Contract log " + file + " has a torn record at " + position + ", ignoring the rest of it");
+				break;
+			}
+			Map<String, Object> record = decode(payload);
+			index.put(key((String) record.get("channelId"), (String) record.get("contractId")), position);
+			position += HEADER_SIZE + length;
+		}
+		liveBytes = liveSize();
+	}
+
+	private boolean isWasteful() {
+		return position > initialSize && position - liveBytes > liveBytes * compactRatio;
+	}
+
+	private void compactIfWasteful() {
+		if (!isWasteful())
+			return;
+		try {
+			compact();
+		} catch (IOException e) {
+			// the log is still whole, it's only bigger than it needs to be
+			log.error("Could not compact contract log " + file, e);
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the latest record of each contract
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(file.getPath() + ".compact");
+		try (OutputStream out = new FileOutputStream(compacted)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			for (int offset : index.values()) {
+				int length = buffer.getInt(offset);
+				byte[] payload = payload(offset, length);
+				header.clear();
+				header.putInt(length).putInt(checksum(payload));
+				out.write(header.array());
+				out.write(payload);
+			}
+		}
+		int before = position;
+		channel.close();
+		raf.close();
+		try {
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			// the compacted log, or the old one if it couldn't replace it
+			open();
+		}
+		log.info("Compacted contract log " + file + " from " + before + " to " + position + " bytes");
+	}
+
+	private void appendContract(String channel, String cid, String contract, String digest, String signature) {
+		Map<String, Object> record = latest(channel, cid);
+		record.put("contract", contract);
+		record.put("digest", digest);
+		record.put("signature", signature);
+		append(channel, cid, record);
+	}
+
+	// not synced to disk, callers force the buffer
+	private void append(String channel, String cid, Map<String, Object> record) {
+		byte[] payload = encode(record);
+		ensureCapacity(HEADER_SIZE + payload.length);
+
+		// length goes last, it's what makes the record part of the log
+		ByteBuffer out = buffer.duplicate();
+		out.position(position + HEADER_SIZE);
+		out.put(payload);
+		buffer.putInt(position + 4, checksum(payload));
+		buffer.putInt(position, payload.length);
+
+		Integer superseded = index.put(key(channel, cid), position);
+		if (superseded != null)
+			liveBytes -= HEADER_SIZE + buffer.getInt(superseded);
+		liveBytes += HEADER_SIZE + payload.length;
+		position += HEADER_SIZE + payload.length;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (position + needed <= buffer.capacity())
+			return;
+		long capacity = Math.max((long) buffer.capacity() * 2, (long) position + needed);
+		if (capacity > Integer.MAX_VALUE)
+			throw new IllegalStateException("Contract log " + file + " is full");
+		try {
+			// mapping past the end grows the file, the old mapping is released once collected
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Map<String, Object> latest(String channel, String cid) {
+		Integer offset = index.get(key(channel, cid));
+		if (offset != null)
+			return read(offset);
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("channelId", channel);
+		record.put("contractId", cid);
+		return record;
+	}
+
+	private Map<String, Object> read(int offset) {
+		return decode(payload(offset, buffer.getInt(offset)));
+	}
+
+	private byte[] payload(int offset, int length) {
+		byte[] payload = new byte[length];
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset + HEADER_SIZE);
+		in.get(payload);
+		return payload;
+	}
+
+	private int liveSize() {
+		int size = 0;
+		for (int offset : index.values()) {
+			size += HEADER_SIZE + buffer.getInt(offset);
+		}
+		return size;
+	}
+
+	private Map<String, Object> decode(byte[] payload) {
+		try {
+			return reader.readValue(new String(payload, StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private byte[] encode(Map<String, Object> record) {
+		try {
+			return writer.writeValueAsString(record).getBytes(StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	private static String key(String channel, String cid) {
+		return channel + "." + cid;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static StoredContract toStoredContract(Map<String, Object> record) {
+
+		StoredContract stored = new StoredContract(
+				(String) record.get("channelId"),
+				(String) record.get("contractId"),
+				(String) record.get("contract"),
+				(String) record.get("digest"),
+				(String) record.get("signature")
+		);
+
+		Map<String, Object> verification = (Map<String, Object>) record.get("verification");
+		if (verification != null) {
+			List<Map<String, Object>> nodesObj = (List<Map<String, Object>>) verification.get("nodes");
+			NodeConnection[] nodes = new NodeConnection[nodesObj.size()];
+			for (int i = 0; i < nodes.length; i++) {
+				Map<String, Object> node = nodesObj.get(i);
+				nodes[i] = new NodeConnection(
+					((Number) node.get("type")).intValue(),
+					(String) node.get("name"),
+					(String) node.get("host"),
+					((Number) node.get("port")).intValue(),
+					((Number) node.get("eventHubPort")).intValue(),
+					(String) node.get("tlsCrtPath")
+				);
+			}
+			stored.setVerification(
+					(String) verification.get("signatureType"),
+					nodes,
+					((Number) verification.get("validFrom")).longValue(),
+					((Number) verification.get("expiresOn")).longValue()
+			);
+		}
+		return stored;
+	}
+
+}
@@ -0,0 +1,187 @@
+package core.store;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.configuration2.Configuration;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+import core.dto.VerifiedContract;
+import util.NodeConnection;
+
+/**
+ * Contract store backed by a MongoDB collection, one document per contract keyed by {channelId, contractId}
+ */
+public class MongoContractStore implements ContractStore {
+
+	private MongoClient dbClient;
+	private DBCollection contractCollection;
+
+	public MongoContractStore(Configuration cfg) throws UnknownHostException {
+		dbClient = new MongoClient(new MongoClientURI(cfg.getString("mongo.address")));
+		DB db = dbClient.getDB(cfg.getString("mongo.database"));
+		contractCollection = db.getCollection(cfg.getString("mongo.contractCollection"));
+	}
+
+	@Override
+	public StoredContract load(String channel, String cid) {
+
+		// search and return contract if we have it in db (a single round trip)
+		DBObject result = contractCollection.findOne(new BasicDBObject().append("_id", key(channel, cid)));
+
+		if (result == null)
+			return null;
+		return toStoredContract(result);
+	}
+
+	@Override
+	public List<StoredContract> loadAll() {
+
+		List<StoredContract> all = new ArrayList<StoredContract>();
+		DBCursor cursor = contractCollection.find();
+		try {
+			for (DBObject result : cursor) {
+				all.add(toStoredContract(result));
+			}
+		} finally {
+			cursor.close();
+		}
+		return all;
+	}
+
+	@Override
+	public CompletableFuture<Void> saveContract(String channel, String cid, String contract, String digest, String signature) {
+
+		// save to db (upsert)
+		contractCollection.update(
+				new BasicDBObject().append("_id", key(channel, cid)),
+				contractUpdate(contract, digest, signature),
+				true,
+				false
+		);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public void saveContracts(List<StoredContract> contracts) {
+		if (contracts.isEmpty())
+			return;
+
+		// a single round trip, upserts are independent so order doesn't matter
+		BulkWriteOperation bulk = contractCollection.initializeUnorderedBulkOperation();
+		for (StoredContract contract : contracts) {
+			bulk.find(new BasicDBObject().append("_id", key(contract.getChannel(), contract.getContractId())))
+				.upsert()
+				.updateOne(contractUpdate(contract.getContract(), contract.getDigest(), contract.getSignature()));
+		}
+		bulk.execute();
+	}
+
+	@Override
+	public void saveVerification(VerifiedContract verified) {
+
+		List<DBObject> nodes = new ArrayList<DBObject>(verified.getNodes().length);
+		for (NodeConnection node : verified.getNodes()) {
+			nodes.add(new BasicDBObject()
+					.append("type", node.type)
+					.append("name", node.name)
+					.append("host", node.host)
+					.append("port", node.port)
+					.append("eventHubPort", node.eventHubPort)
+					.append("tlsCrtPath", node.tlsCrtPath));
+		}
+
+		final DBObject verificationObj = new BasicDBObject()
+				.append("$set", new BasicDBObject()
+					.append("verification", new BasicDBObject()
+						.append("signatureType", verified.getSignatureType())
+						.append("validFrom", verified.getValidFrom())
+						.append("expiresOn", verified.getExpiresOn())
+						.append("nodes", nodes)));
+
+		// the contract itself is saved when loaded, so this is never the only field
+		contractCollection.update(
+				new BasicDBObject().append("_id", key(verified.getChannel(), verified.getContractId())),
+				verificationObj,
+				true,
+				false
+		);
+	}
+
+	@Override
+	public void clearVerification(String channel, String cid) {
+		contractCollection.update(
+				new BasicDBObject().append("_id", key(channel, cid)),
+				new BasicDBObject().append("$unset", new BasicDBObject().append("verification", "")),
+				false,
+				false
+		);
+	}
+
+	@Override
+	public void close() {
+		dbClient.close();
+	}
+
+	// only these fields, the verification is kept
+	private static DBObject contractUpdate(String contract, String digest, String signature) {
+		return new BasicDBObject()
+				.append("$set", new BasicDBObject()
+					.append("contract", contract)
+					.append("digest", digest)
+					.append("signature", signature));
+	}
+
+	private static DBObject key(String channel, String cid) {
+		return new BasicDBObject()
+				.append("channelId", channel)
+				.append("contractId", cid);
+	}
+
+	private static StoredContract toStoredContract(DBObject result) {
+
+		DBObject id = (DBObject) result.get("_id");
+		StoredContract stored = new StoredContract(
+				(String) id.get("channelId"),
+				(String) id.get("contractId"),
+				(String) result.get("contract"),
+				(String) result.get("digest"),
+				(String) result.get("signature")
+		);
+
+		DBObject verificationObj = (DBObject) result.get("verification");
+		if (verificationObj != null) {
+			List<?> nodesObj = (List<?>) verificationObj.get("nodes");
+			NodeConnection[] nodes = new NodeConnection[nodesObj.size()];
+			for (int i = 0; i < nodes.length; i++) {
+				DBObject node = (DBObject) nodesObj.get(i);
+				nodes[i] = new NodeConnection(
+					(int) node.get("type"),
+					(String) node.get("name"),
+					(String) node.get("host"),
+					(int) node.get("port"),
+					(int) node.get("eventHubPort"),
+					(String) node.get("tlsCrtPath")
+				);
+			}
+			stored.setVerification(
+					(String) verificationObj.get("signatureType"),
+					nodes,
+					(long) verificationObj.get("validFrom"),
+					(long) verificationObj.get("expiresOn")
+			);
+		}
+		return stored;
+	}
+
+}
@@ -0,0 +1,77 @@
+package core.store;
+
+import util.NodeConnection;
+
+/**
+ * A contract as kept in a contract store, with its verification if it has been verified
+ */
+public class StoredContract {
+
+	private String channel;
+	private String contractId;
+	private String contract;
+	private String digest;
+	private String signature;
+
+	// verification, signature type is null when not verified
+	private String signatureType;
+	private NodeConnection[] nodes;
+	private long validFrom; // epoch millis
+	private long expiresOn; // epoch millis
+
+	public StoredContract(String channel, String contractId, String contract, String digest, String signature) {
+		this.channel = channel;
+		this.contractId = contractId;
+		this.contract = contract;
+		this.digest = digest;
+		this.signature = signature;
+	}
+
+	public void setVerification(String signatureType, NodeConnection[] nodes, long validFrom, long expiresOn) {
+		this.signatureType = signatureType;
+		this.nodes = nodes;
+		this.validFrom = validFrom;
+		this.expiresOn = expiresOn;
+	}
+
+	public boolean isVerified() {
+		return signatureType != null;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public String getContractId() {
+		return contractId;
+	}
+
+	public String getContract() {
+		return contract;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public String getSignature() {
+		return signature;
+	}
+
+	public String getSignatureType() {
+		return signatureType;
+	}
+
+	public NodeConnection[] getNodes() {
+		return nodes;
+	}
+
+	public long getValidFrom() {
+		return validFrom;
+	}
+
+	public long getExpiresOn() {
+		return expiresOn;
+	}
+
+}
@@ -0,0 +1,305 @@
+package core.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.log4j.Logger;
+
+import core.dto.VerifiedContract;
+
+/**
+ * Keeps contract saves off the request path: they are queued, coalesced per contract and written to the
+ * underlying store in bulk by a background thread, every interval or as soon as a batch fills up.
+ *
+ * Loads see queued contracts before they are written. Saves are turned down once too many contracts are queued,
+ * and whatever is still queued is written when the store is closed. A save whose write fails completes exceptionally,
+ * the contract stays queued and is retried on the next flush.
+ */
+public class WriteBehindContractStore implements ContractStore {
+
+    private static final Logger log = Logger.getLogger(WriteBehindContractStore.class);
+
+	private ContractStore store;
+	private int batchSize;
+	private int maxPending;
+	private LinkedHashMap<String, Pending> pending; // per channel and contract id, oldest first
+	private Map<String, Pending> writing; // drained, still being written
+	private ScheduledExecutorService flusher;
+	private AtomicBoolean flushRequested; // a flush ahead of the interval is already on its way
+	private boolean closed;
+
+	private AtomicLong flushes;
+	private AtomicLong flushed; // contracts
+	private AtomicLong flushTime; // millis
+	private AtomicLong lastFlushTime; // millis
+	private AtomicLong failures;
+
+	public WriteBehindContractStore(Configuration cfg, ContractStore store) {
+		this.store = store;
+		this.batchSize = cfg.getInt("store.writeBehind.batchSize");
+		this.maxPending = cfg.getInt("store.writeBehind.maxPending");
+		this.pending = new LinkedHashMap<String, Pending>();
+		this.writing = new HashMap<String, Pending>();
+		this.flushes = new AtomicLong();
+		this.flushed = new AtomicLong();
+		this.flushTime = new AtomicLong();
+		this.lastFlushTime = new AtomicLong();
+		this.failures = new AtomicLong();
+		this.flushRequested = new AtomicBoolean();
+
+		long interval = cfg.getLong("store.writeBehind.interval");
+		this.flusher = Executors.newSingleThreadScheduledExecutor();
+		this.flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public StoredContract load(String channel, String cid) {
+		Pending queued;
+		synchronized (this) {
+			queued = pending.get(key(channel, cid));
+			if (queued == null)
+				queued = writing.get(key(channel, cid));
+		}
+		StoredContract stored = store.load(channel, cid);
+		if (queued == null)
+			return stored;
+
+		// the queued contract with the stored verification, if there's one
+		StoredContract merged = new StoredContract(channel, cid, queued.contract.getContract(), queued.contract.getDigest(), queued.contract.getSignature());
+		if (stored != null && stored.isVerified())
+			merged.setVerification(stored.getSignatureType(), stored.getNodes(), stored.getValidFrom(), stored.getExpiresOn());
+		return merged;
+	}
+
+	@Override
+	public List<StoredContract> loadAll() {
+		// only used on startup, before anything is queued
+		return store.loadAll();
+	}
+
+	@Override
+	public CompletableFuture<Void> saveContract(String channel, String cid, String contract, String digest, String signature) {
+
+		String key = key(channel, cid);
+		StoredContract queued = new StoredContract(channel, cid, contract, digest, signature);
+		boolean full;
+		CompletableFuture<Void> written;
+		synchronized (this) {
+			if (closed) {
+				// write through, nothing flushes after close
+				return store.saveContract(channel, cid, contract, digest, signature);
+			}
+			
+			// backpressure without blocking the caller (often an SDK thread), a contract already queued only replaces its entry
+			if (pending.size() >= maxPending && !pending.containsKey(key)) {
+				log.warn("Write-behind queue is full, turned down the save of " + key + ": " + this);
+				return CompletableFuture.failedFuture(new IllegalStateException("Too many contracts waiting to be stored"));
+			}
+
+			Pending entry = pending.remove(key);
+			written = entry == null ? new CompletableFuture<Void>() : entry.written;
+			pending.put(key, new Pending(queued, written));
+			full = pending.size() >= batchSize;
+		}
+
+		if (full) {
+			flushQueued();
+		}
+		return written;
+	}
+
+	/**
+	 * Flushes on the background thread now rather than on the next interval.
+	 * Saves queued meanwhile go in the same flush, so waiters still share writes
+	 */
+	@Override
+	public void flushQueued() {
+		if (flushRequested.compareAndSet(false, true)) {
+			try {
+				flusher.execute(() -> {
+					flushRequested.set(false);
+					flush();
+				});
+			} catch (RejectedExecutionException e) {
+				// closed, close() flushes what's left
+				flushRequested.set(false);
+			}
+		}
+	}
+
+	@Override
+	public void saveContracts(List<StoredContract> contracts) {
+		for (StoredContract contract : contracts) {
+			saveContract(contract.getChannel(), contract.getContractId(), contract.getContract(), contract.getDigest(), contract.getSignature());
+		}
+	}
+
+	@Override
+	public void saveVerification(VerifiedContract verified) {
+		// once per contract, stores keep the contract fields apart from it
+		store.saveVerification(verified);
+	}
+
+	@Override
+	public void clearVerification(String channel, String cid) {
+		store.clearVerification(channel, cid);
+	}
+
+	/**
+	 * Writes everything still queued, then closes the underlying store
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		
+		// the store is down, nothing else will write these
+		List<Pending> lost;
+		synchronized (this) {
+			lost = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		for (Pending entry : lost) {
+			entry.written.completeExceptionally(new IllegalStateException("Store closed before the contract was written"));
+		}
+		if (!lost.isEmpty())
+			log.error("Closed with " + lost.size() + " contracts still unwritten");
+		log.info("Closing " + this);
+		store.close();
+	}
+
+	/**
+	 * Contracts queued and not yet being written
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size();
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getFlushed() {
+		return flushed.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getLastFlushTime() {
+		return lastFlushTime.get();
+	}
+
+	public double getAverageFlushTime() {
+		return flushes.get() == 0 ? 0 : (double) flushTime.get() / flushes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "WriteBehindContractStore [queueDepth=" + getQueueDepth() + ", flushes=" + flushes + ", flushed=" + flushed
+				+ ", lastFlushTime=" + lastFlushTime + ", averageFlushTime=" + getAverageFlushTime() + ", failures=" + failures + "]";
+	}
+
+	private synchronized List<Pending> drain() {
+		List<Pending> batch = new ArrayList<Pending>(Math.min(pending.size(), batchSize));
+		Iterator<Pending> it = pending.values().iterator();
+		while (it.hasNext() && batch.size() < batchSize) {
+			Pending entry = it.next();
+			batch.add(entry);
+			writing.put(key(entry.contract.getChannel(), entry.contract.getContractId()), entry);
+			it.remove();
+		}
+		return batch;
+	}
+
+	private void flush() {
+		List<Pending> batch;
+		while (!(batch = drain()).isEmpty()) {
+
+			List<StoredContract> contracts = new ArrayList<StoredContract>(batch.size());
+			for (Pending entry : batch) {
+				contracts.add(entry.contract);
+			}
+
+			long start = System.currentTimeMillis();
+			try {
+				store.saveContracts(contracts);
+			} catch (RuntimeException e) {
+				failures.incrementAndGet();
+				log.error("Could not write " + batch.size() + " contracts, they will be retried: " + this, e);
+				requeue(batch);
+				
+				// whoever waits on them learns now, not once the store is back
+				for (Pending entry : batch) {
+					entry.written.completeExceptionally(e);
+				}
+				return;
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			flushes.incrementAndGet();
+			flushed.addAndGet(batch.size());
+			flushTime.addAndGet(elapsed);
+			lastFlushTime.set(elapsed);
+
+			written(batch);
+			for (Pending entry : batch) {
+				entry.written.complete(null);
+			}
+			if (log.isDebugEnabled())
+				log.debug("Wrote " + batch.size() + " contracts: " + this);
+		}
+	}
+
+	private synchronized void written(List<Pending> batch) {
+		for (Pending entry : batch) {
+			writing.remove(key(entry.contract.getChannel(), entry.contract.getContractId()), entry);
+		}
+	}
+
+	// ahead of newer saves, which replace them. their savers are failed, the retry has a future of its own
+	private synchronized void requeue(List<Pending> batch) {
+		written(batch);
+		LinkedHashMap<String, Pending> requeued = new LinkedHashMap<String, Pending>();
+		for (Pending entry : batch) {
+			requeued.put(key(entry.contract.getChannel(), entry.contract.getContractId()), new Pending(entry.contract, new CompletableFuture<Void>()));
+		}
+		requeued.putAll(pending);
+		pending = requeued;
+	}
+
+	private static String key(String channel, String cid) {
+		return channel + "." + cid;
+	}
+
+	private static class Pending {
+		StoredContract contract;
+		CompletableFuture<Void> written; // shared by every save of the contract since its last write
+
+		Pending(StoredContract contract, CompletableFuture<Void> written) {
+			this.contract = contract;
+			this.written = written;
+		}
+	}
+
+}
@@ -3,13 +3,10 @@ package endpoint.coap;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeoutException;
-
-import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
-import org.hyperledger.fabric.sdk.exception.ProposalException;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -47,51 +44,54 @@ public class SmartContractCoAPResource extends CoapResource {
 			RequestParameters rp = parseParametersFromBody(body);
 
 			// execute the function
-			ChaincodeResult result = null;
-			try {
-				result = ci.verifyAndExecuteContract(EntityType.ENTITY_TYPE_IOT_DEVICE,
-						Dispatcher.CHAINCODE_QUERY_OPERATION, rp.channel, rp.cid, rp.oid, null, // TODO: ignore this
-																								// when CoAP!
-						rp.args);
-			} catch (ProposalException | InvalidArgumentException | ExecutionException | TimeoutException
-					| NonConformantContractException | InvalidContractPropertyException e) {
-				e.printStackTrace();
-				ex.setResponseBody("Chaincode failure when performing query");
-				ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
-				ex.sendResponse();
-			}
-			// check for chain code failure
-			if (result == null || result.getStatus() == ChaincodeResult.CHAINCODE_FAILURE) {
-				ex.setResponseBody("Chaincode failure when performing query");
-				ex.setResponseCode(Code.C400_BAD_REQUEST);
-				ex.sendResponse();
-			}
-
-			// this is overkill for CoAP, just return result
-//			// parse signatures and put them into a usable format
-//			List<String> signatures = result.getSignatures();
-//			ArrayNode jsonArray = om.valueToTree(signatures);
-//			jsonResult.putArray("signatures").addAll(jsonArray);
-
-			// finalize response
-			ObjectMapper om = new ObjectMapper();
-			ObjectNode jsonResult = om.createObjectNode();
-			jsonResult.put("result", result.getContent());
-
-			// send it
-			String responseBody = null;
-			try {
-				responseBody = om.writer().writeValueAsString(jsonResult);
-			} catch (JsonProcessingException e) {
-				e.printStackTrace();
-				ex.setResponseBody("Failure when return reply to query");
-				ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
+			CompletableFuture<ChaincodeResult> pendingResult = ci.verifyAndExecuteContract(EntityType.ENTITY_TYPE_IOT_DEVICE,
+					Dispatcher.CHAINCODE_QUERY_OPERATION, rp.channel, rp.cid, rp.oid, null, // TODO: ignore this
+																							// when CoAP!
+					rp.args);
+
+			// reply once the query is answered, without holding a pool thread
+			pendingResult.whenComplete((result, t) -> {
+				
+				if (t != null) {
+					sendFailure(ex, t, "query");
+					return;
+				}
+				
+				// check for chain code failure
+				if (result == null || result.getStatus() == ChaincodeResult.CHAINCODE_FAILURE) {
+					ex.setResponseBody("Chaincode failure when performing query");
+					ex.setResponseCode(Code.C400_BAD_REQUEST);
+					ex.sendResponse();
+					return;
+				}
+	
+				// this is overkill for CoAP, just return result
+//				// parse signatures and put them into a usable format
+//				List<String> signatures = result.getSignatures();
+//				ArrayNode jsonArray = om.valueToTree(signatures);
+//				jsonResult.putArray("signatures").addAll(jsonArray);
+	
+				// finalize response
+				ObjectMapper om = new ObjectMapper();
+				ObjectNode jsonResult = om.createObjectNode();
+				jsonResult.put("result", result.getContent());
+	
+				// send it
+				String responseBody = null;
+				try {
+					responseBody = om.writer().writeValueAsString(jsonResult);
+				} catch (JsonProcessingException e) {
+					e.printStackTrace();
+					ex.setResponseBody("Failure when return reply to query");
+					ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
+					ex.sendResponse();
+					return;
+				}
+	
+				ex.setResponseBody(responseBody);
+				ex.setResponseCode(Code.C205_CONTENT);
 				ex.sendResponse();
-			}
-
-			ex.setResponseBody(responseBody);
-			ex.setResponseCode(Code.C205_CONTENT);
-			ex.sendResponse();
+			});
 
 		});
 
@@ -107,61 +107,64 @@ public class SmartContractCoAPResource extends CoapResource {
 			RequestParameters rp = parseParametersFromBody(body);
 
 			// execute the function
-			ChaincodeResult result = null;
-			try {
-				result = ci.verifyAndExecuteContract(EntityType.ENTITY_TYPE_IOT_DEVICE,
-						Dispatcher.CHAINCODE_INVOKE_OPERATION, rp.channel, rp.cid, rp.oid, null, // TODO: ignore
-																									// this when
-																									// CoAP!
-						rp.args);
-			} catch (ProposalException | InvalidArgumentException | ExecutionException | TimeoutException
-					| NonConformantContractException | InvalidContractPropertyException e) {
-				e.printStackTrace();
-				ex.setResponseBody("Chaincode failure when performing query");
-				ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
-				ex.sendResponse();
-			}
-			// check for chain code failure
-			if (result == null || result.getStatus() == ChaincodeResult.CHAINCODE_FAILURE) {
-				ex.setResponseBody("Chaincode failure when performing query");
-				ex.setResponseCode(Code.C400_BAD_REQUEST);
-				ex.sendResponse();
-			}
-
-			// this is overkill for CoAP, just return an ok and timestamp
-//			// parse signatures and put them into a usable format
-//			List<String> signatures = result.getSignatures();
-//			ArrayNode jsonArray = om.valueToTree(signatures);
-//			jsonResult.putArray("signatures").addAll(jsonArray);
+			CompletableFuture<ChaincodeResult> pendingResult = ci.verifyAndExecuteContract(EntityType.ENTITY_TYPE_IOT_DEVICE,
+					Dispatcher.CHAINCODE_INVOKE_OPERATION, rp.channel, rp.cid, rp.oid, null, // TODO: ignore
+																								// this when
+																								// CoAP!
+					rp.args);
 			
-			// get timestamp
-			DateFormat df = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-			String timestamp = null;
-			if (result.getTimestamp() != null) {
-				timestamp = df.format(result.getTimestamp());
-			}
-
-			// finalize response
-			ObjectMapper om = new ObjectMapper();
-			ObjectNode jsonResult = om.createObjectNode();
-			// invoke just needs timestamp for transaction confirmal
-			jsonResult.put("timestamp", timestamp);
-			jsonResult.put("result", "OK");
-
-			// send it
-			String responseBody = null;
-			try {
-				responseBody = om.writer().writeValueAsString(jsonResult);
-			} catch (JsonProcessingException e) {
-				e.printStackTrace();
-				ex.setResponseBody("Failure when returning reply to invoke");
-				ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
+			// reply once the transaction is committed, without holding a pool thread
+			pendingResult.whenComplete((result, t) -> {
+				
+				if (t != null) {
+					sendFailure(ex, t, "invoke");
+					return;
+				}
+				
+				// check for chain code failure
+				if (result == null || result.getStatus() == ChaincodeResult.CHAINCODE_FAILURE) {
+					ex.setResponseBody("Chaincode failure when performing invoke");
+					ex.setResponseCode(Code.C400_BAD_REQUEST);
+					ex.sendResponse();
+					return;
+				}
+	
+				// this is overkill for CoAP, just return an ok and timestamp
+//				// parse signatures and put them into a usable format
+//				List<String> signatures = result.getSignatures();
+//				ArrayNode jsonArray = om.valueToTree(signatures);
+//				jsonResult.putArray("signatures").addAll(jsonArray);
+				
+				// get timestamp
+				DateFormat df = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+				String timestamp = null;
+				if (result.getTimestamp() != null) {
+					timestamp = df.format(result.getTimestamp());
+				}
+	
+				// finalize response
+				ObjectMapper om = new ObjectMapper();
+				ObjectNode jsonResult = om.createObjectNode();
+				// invoke just needs timestamp for transaction confirmal
+				jsonResult.put("timestamp", timestamp);
+				jsonResult.put("result", "OK");
+	
+				// send it
+				String responseBody = null;
+				try {
+					responseBody = om.writer().writeValueAsString(jsonResult);
+				} catch (JsonProcessingException e) {
+					e.printStackTrace();
+					ex.setResponseBody("Failure when returning reply to invoke");
+					ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
+					ex.sendResponse();
+					return;
+				}
+	
+				ex.setResponseBody(responseBody);
+				ex.setResponseCode(Code.C205_CONTENT);
 				ex.sendResponse();
-			}
-
-			ex.setResponseBody(responseBody);
-			ex.setResponseCode(Code.C205_CONTENT);
-			ex.sendResponse();
+			});
 
 		});
 	}
@@ -171,6 +174,19 @@ public class SmartContractCoAPResource extends CoapResource {
 	 * -----------------------------------------------------------------------------------------------
 	 **/
 
+	// a contract the request can't run against is the client's fault, anything else is the server's
+	private static void sendFailure(CoapExchange ex, Throwable t, String operation) {
+		Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+		cause.printStackTrace();
+		ex.setResponseBody("Chaincode failure when performing " + operation);
+		if (cause instanceof InvalidContractPropertyException || cause instanceof NonConformantContractException) {
+			ex.setResponseCode(Code.C400_BAD_REQUEST);
+		} else {
+			ex.setResponseCode(Code.C500_INTERNAL_SERVER_ERROR);
+		}
+		ex.sendResponse();
+	}
+
 	// helper class
 	class RequestParameters {
 		String channel, cid, oid;
@@ -0,0 +1,124 @@
+package endpoint.rest;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import core.Dispatcher;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+/**
+ * Answers the routes that wait on the blockchain (signing, queries and invokes) in front of Spark, which writes and
+ * closes a route's response as soon as the route returns. The request is suspended and its reply is written from the
+ * completion of the pending call, so no server thread is held while the call is in flight.
+ */
+public class AsyncOperationHandler extends AbstractHandler {
+
+	private static final Logger log = Logger.getLogger(AsyncOperationHandler.class);
+
+	// /api/:channel/contract/:cid/sign, query or invoke
+	private static final Pattern OPERATION_PATH = Pattern.compile("^/api/([^/]+)/contract/([^/]+)/(sign|query|invoke)/?$");
+
+	private long timeout; // millis
+
+	public AsyncOperationHandler(long timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+
+		// anything else is left to spark
+		Matcher path = OPERATION_PATH.matcher(target);
+		if (!"POST".equals(request.getMethod()) || !path.matches())
+			return;
+		baseRequest.setHandled(true);
+
+		// parameters are read before the request is suspended
+		String channel = path.group(1);
+		String cid = path.group(2);
+		boolean html = RESTServer.shouldReturnHtml(request);
+		CompletableFuture<RESTServer.Reply> pendingReply;
+		switch (path.group(3)) {
+			case "sign":
+				pendingReply = RESTServer.postContractSign(request, channel, cid);
+				break;
+			case "query":
+				pendingReply = RESTServer.postOperation(request, channel, cid, Dispatcher.CHAINCODE_QUERY_OPERATION);
+				break;
+			default:
+				pendingReply = RESTServer.postOperation(request, channel, cid, Dispatcher.CHAINCODE_INVOKE_OPERATION);
+		}
+
+		// the pending call has its own timeout, the container's would answer in its place
+		AsyncContext asyncCtx = request.startAsync();
+		asyncCtx.setTimeout(0);
+		pendingReply.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((reply, t) -> {
+			try {
+				if (t != null) {
+					// unwrap the failure of the pipeline stage that broke
+					Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+					reply = RESTServer.errorReply(html, cause instanceof Exception ? (Exception) cause : new Exception(cause));
+				}
+				reply.writeTo((HttpServletResponse) asyncCtx.getResponse());
+			} catch (IOException e) {
+				log.warn("Could not reply to " + target + ": " + e.getMessage());
+			} finally {
+				asyncCtx.complete();
+			}
+		});
+	}
+
+	/**
+	 * Spark's embedded jetty server, as Spark builds it, with the handler in front of Spark's own
+	 */
+	public static class ServerFactory implements JettyServerFactory {
+
+		private Handler handler;
+
+		public ServerFactory(Handler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+			if (maxThreads <= 0)
+				return create(new QueuedThreadPool());
+			return create(new QueuedThreadPool(
+					maxThreads,
+					minThreads > 0 ? minThreads : 8,
+					threadTimeoutMillis > 0 ? threadTimeoutMillis : 60000
+			));
+		}
+
+		@Override
+		public Server create(ThreadPool threadPool) {
+			return new Server(threadPool) {
+				@Override
+				public void setHandler(Handler sparkHandler) {
+					// spark sets its handler once, when it's ignited
+					HandlerList handlers = new HandlerList();
+					handlers.setHandlers(new Handler[] { handler, sparkHandler });
+					super.setHandler(handlers);
+				}
+			};
+		}
+	}
+
+}
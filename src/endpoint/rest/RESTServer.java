@@ -15,16 +15,20 @@ import static j2html.TagCreator.textarea;
 import static spark.Spark.get;
 import static spark.Spark.path;
 import static spark.Spark.port;
-import static spark.Spark.post;
 import static spark.Spark.secure;
 import static spark.Spark.threadPool;
 
-import java.security.MessageDigest;
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.configuration2.Configuration;
 
@@ -40,6 +44,8 @@ import core.dto.Contract;
 import endpoint.EntityType;
 import spark.Request;
 import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 public class RESTServer {
 	
@@ -53,6 +59,14 @@ public class RESTServer {
 	}
 	
 	public void start() {
+		// answer the routes that wait on the blockchain in front of spark, must be set before any route is mapped
+		EmbeddedServers.add(
+			EmbeddedServers.Identifiers.JETTY,
+			new EmbeddedJettyFactory(new AsyncOperationHandler.ServerFactory(
+				new AsyncOperationHandler(cfg.getLong("hlf.proposal.timeout") + cfg.getLong("hlf.transaction.timeout"))
+			))
+		);
+
 		// set port, https and threadpool config
         port(
         	cfg.getInt("api.rest.port")
@@ -76,6 +90,9 @@ public class RESTServer {
         path("/api", () -> {
         	
         	get("/", (request, response) -> "Blockchain-supported Ledgering API for Decentralized Applications - v1.0");
+        	
+        	// for load balancers, only ready once stored contracts are warmed up
+        	get("/ready", (req, rsp) -> getReadiness(req, rsp));
 
             path("/:channel", () -> {
                 
@@ -84,18 +101,11 @@ public class RESTServer {
 	                get("/:cid", "text/html", (req, rsp) -> getContract(req, rsp));
 	                get("/:cid", "application/json", (req, rsp) -> getContract(req, rsp));
 	                
-	                post("/:cid/sign", "text/html", (req, rsp) -> postContractSign(req, rsp));
-	                post("/:cid/sign", "application/json", (req, rsp) -> postContractSign(req, rsp));
-	                
 	                get("/:cid/query", "text/html", (req, rsp) -> getQueryOperation(req, rsp));		// HTML only
 	                
 	                get("/:cid/invoke", "text/html", (req, rsp) -> getInvokeOperation(req, rsp));	// HTML only
 
-	                post("/:cid/query", "text/html", (req, rsp) -> postQueryOperation(req, rsp));
-	                post("/:cid/query", "application/json", (req, rsp) -> postQueryOperation(req, rsp));
-
-	                post("/:cid/invoke", "text/html", (req, rsp) -> postInvokeOperation(req, rsp));  // HTML/JSON
-	                post("/:cid/invoke", "application/json", (req, rsp) -> postInvokeOperation(req, rsp));  // HTML/JSON
+	                // POST /:cid/sign, /:cid/query and /:cid/invoke (HTML/JSON) are answered by AsyncOperationHandler
                 });
             });
         });
@@ -103,6 +113,15 @@ public class RESTServer {
 	
 	/* ---------------------- API METHODS --------------------- */
 
+	public static String getReadiness(Request req, Response rsp) {
+		if (ci.isReady()) {
+			rsp.status(200);
+			return "ready";
+		}
+		rsp.status(503);
+		return "warming up";
+	}
+
 	public static String getContract(Request req, Response rsp) {
 		
 
@@ -120,10 +139,8 @@ public class RESTServer {
 					extractClientCrt(req)
 			);
 
-			// produce an hash of the contract
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(contract.getRawRepresentation().getBytes());
-			final String contractHash = new String(Base64.getEncoder().encode(md.digest()));
+			// hash of the contract, computed once per contract
+			final String contractHash = contract.getDigest();
 
 
 	    	rsp.status(200);
@@ -203,43 +220,42 @@ public class RESTServer {
 	
 
 
-	public static String postContractSign(Request req, Response rsp) {
+	public static CompletableFuture<Reply> postContractSign(HttpServletRequest req, String channel, String cid) {
 
 		// get params
-		String channel = req.params(":channel");
-		String cid = req.params(":cid");
-    	String clientSig = req.queryParams("signature");
+		boolean html = shouldReturnHtml(req);
+    	String clientSig = req.getParameter("signature");
 		
     	try {
     		
-    		// get client crt first
-    		boolean result = ci.signContract(
+    		// reply once the signature is committed
+    		return ci.signContract(
 					EntityType.ENTITY_TYPE_USER,
 					channel, 
 					cid, 
 					extractClientCrt(req), 
 					clientSig
-			);
-    		
-    		rsp.status(200);
-    		if (shouldReturnHtml(req)) {
-
-    			// if html just redirect to the contract and obtain it again,
-    			// the confirmation will be there
-    	    	rsp.type("text/html");
-    	    	rsp.redirect("/api/" + channel + "/contract/" + cid);
-    		} else {
-    	    	rsp.type("application/json");
+			).thenApply(result -> {
+	    		if (html) {
+
+	    			// if html just redirect to the contract and obtain it again,
+	    			// the confirmation will be there
+	    	    	return Reply.redirect("/api/" + channel + "/contract/" + cid);
+	    		}
+	    		
 				ObjectMapper om = new ObjectMapper();
 				ObjectNode jsonResult = om.createObjectNode();
 				jsonResult.put("result", result);
-				return om.writer().writeValueAsString(jsonResult);
-    		}
+				try {
+					return new Reply(200, "application/json", om.writer().writeValueAsString(jsonResult));
+				} catch (JsonProcessingException e) {
+					throw new CompletionException(e);
+				}
+			});
     		
 		} catch (Exception e) {
-			return throwError(req, rsp, e);
+			return CompletableFuture.completedFuture(errorReply(html, e));
 		}
-    	return null;
 	}
 	
 	public static String getQueryOperation(Request req, Response rsp) {
@@ -339,22 +355,12 @@ public class RESTServer {
 		).render();
 	}
 	
-	public static String postQueryOperation(Request req, Response rsp) {
-    	return postOperation(req, rsp, Dispatcher.CHAINCODE_QUERY_OPERATION);
-	}
-	
-	
-	public static String postInvokeOperation(Request req, Response rsp) {
-    	return postOperation(req, rsp, Dispatcher.CHAINCODE_INVOKE_OPERATION);
-	}
-	
-	public static String postOperation(Request req, Response rsp, int type) {
+	public static CompletableFuture<Reply> postOperation(HttpServletRequest req, String channel, String cid, int type) {
 		
 		// get params
-		String channel = req.params(":channel");
-    	String cid = req.params(":cid");
-    	String oid = req.queryParams("operationId");
-    	String oargs = req.queryParams("operationArgs");
+		boolean html = shouldReturnHtml(req);
+    	String oid = req.getParameter("operationId");
+    	String oargs = req.getParameter("operationArgs");
     	
 
 		try {
@@ -368,8 +374,8 @@ public class RESTServer {
 			
 	
 			
-			// execute the function
-			ChaincodeResult result = ci.verifyAndExecuteContract(
+			// execute the function, reply once the query is answered or the transaction is committed
+			return ci.verifyAndExecuteContract(
 					EntityType.ENTITY_TYPE_USER,
 					type, 
 					channel, 
@@ -377,100 +383,154 @@ public class RESTServer {
 					oid, 
 					extractClientCrt(req), 
 					args
-			);
-			// check for chain code failure
-			if (result == null || result.getStatus() == ChaincodeResult.CHAINCODE_FAILURE) {
-
-				return throwError(req, rsp, new Exception("Chaincode failure when performing " + (type == Dispatcher.CHAINCODE_QUERY_OPERATION ? "query" : "invocation")));
-			}
-			
-			// parse signatures and put them into a usable format
-			List<String> signatures = result.getSignatures();
-			DateFormat df = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-			String timestamp = null;
-			if (result.getTimestamp() != null) {
-				timestamp = df.format(result.getTimestamp());
-			}
+			).thenApply(result -> {
+				try {
+					return renderOperationResult(html, type, result);
+				} catch (JsonProcessingException e) {
+					throw new CompletionException(e);
+				}
+			});
+		} catch (Exception e) {
+			return CompletableFuture.completedFuture(errorReply(html, e));
+		}
+	}
+	
+	private static Reply renderOperationResult(boolean html, int type, ChaincodeResult result) throws JsonProcessingException {
+		
+		// check for chain code failure
+		if (result == null || result.getStatus() == ChaincodeResult.CHAINCODE_FAILURE) {
 
-        	rsp.status(200);
-			if (shouldReturnHtml(req)) {
+			return errorReply(html, new Exception("Chaincode failure when performing " + (type == Dispatcher.CHAINCODE_QUERY_OPERATION ? "query" : "invocation")));
+		}
+		
+		// parse signatures and put them into a usable format
+		List<String> signatures = result.getSignatures();
+		DateFormat df = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+		String timestamp = null;
+		if (result.getTimestamp() != null) {
+			timestamp = df.format(result.getTimestamp());
+		}
 
-            	rsp.type("text/html");
-            	return body().with(
-            			h3((type == Dispatcher.CHAINCODE_QUERY_OPERATION ? "Query" : "Invocation") + " result: OK"),
-            			type == Dispatcher.CHAINCODE_QUERY_OPERATION ? div() : div("Timestamp: " + timestamp),
-    					type == Dispatcher.CHAINCODE_QUERY_OPERATION ? div("Result: " + result.getContent()) : div(),
-            			div("Peer endorsement signature(s): "),
-            			br(),
-            			each(signatures, sig -> div(
-        					Base64.getEncoder().encodeToString(sig.getBytes())
-            			).with(br(), br()))
-            	).render();
-	        	
-			} else {
+		if (html) {
+
+        	return new Reply(200, "text/html", body().with(
+        			h3((type == Dispatcher.CHAINCODE_QUERY_OPERATION ? "Query" : "Invocation") + " result: OK"),
+        			type == Dispatcher.CHAINCODE_QUERY_OPERATION ? div() : div("Timestamp: " + timestamp),
+					type == Dispatcher.CHAINCODE_QUERY_OPERATION ? div("Result: " + result.getContent()) : div(),
+        			div("Peer endorsement signature(s): "),
+        			br(),
+        			each(signatures, sig -> div(
+    					Base64.getEncoder().encodeToString(sig.getBytes())
+        			).with(br(), br()))
+        	).render());
+        	
+		} else {
 
-				// put arrays into json array and finalize object
-            	rsp.type("application/json");
-				ArrayNode jsonArray = om.valueToTree(signatures);
-				ObjectNode jsonResult = om.createObjectNode();
-				jsonResult.putArray("signatures").addAll(jsonArray);
+			// put arrays into json array and finalize object
+			ObjectMapper om = new ObjectMapper();
+			ArrayNode jsonArray = om.valueToTree(signatures);
+			ObjectNode jsonResult = om.createObjectNode();
+			jsonResult.putArray("signatures").addAll(jsonArray);
 
-				switch (type) {
-					case Dispatcher.CHAINCODE_INVOKE_OPERATION:
-						// invoke just needs timestamp for transaction confirmal
-						jsonResult.put("timestamp", timestamp);
-						break;
-			
-					case Dispatcher.CHAINCODE_QUERY_OPERATION:
-						// query needs query results
-						jsonResult.put("result", result.getContent());
-						break;
-				}
-				return om.writer().writeValueAsString(jsonResult);
+			switch (type) {
+				case Dispatcher.CHAINCODE_INVOKE_OPERATION:
+					// invoke just needs timestamp for transaction confirmal
+					jsonResult.put("timestamp", timestamp);
+					break;
+		
+				case Dispatcher.CHAINCODE_QUERY_OPERATION:
+					// query needs query results
+					jsonResult.put("result", result.getContent());
+					break;
 			}
-		} catch (Exception e) {
-			return throwError(req, rsp, e);
+			return new Reply(200, "application/json", om.writer().writeValueAsString(jsonResult));
 		}
 	}
 	
 	/** AUX FUNCTIONS **/
 		
 	public static boolean shouldReturnHtml(Request request) {
-	    String accept = request.headers("Accept");
+	    return shouldReturnHtml(request.raw());
+	}
+	
+	public static boolean shouldReturnHtml(HttpServletRequest request) {
+	    String accept = request.getHeader("Accept");
 	    return accept != null && accept.contains("text/html");
 	}
 	
 
 	public static X509Certificate extractClientCrt(Request req) {
-		X509Certificate[] crtList = (X509Certificate[]) req.raw().getAttribute("javax.servlet.request.X509Certificate");
+		return extractClientCrt(req.raw());
+	}
+	
+	public static X509Certificate extractClientCrt(HttpServletRequest req) {
+		X509Certificate[] crtList = (X509Certificate[]) req.getAttribute("javax.servlet.request.X509Certificate");
 		return crtList[0];
 	}
 	
 	public static String throwError(Request req, Response rsp, Exception e)  {
+		Reply reply = errorReply(shouldReturnHtml(req), e);
+		rsp.status(reply.status);
+		rsp.type(reply.type);
+		return reply.body;
+	}
+	
+	public static Reply errorReply(boolean html, Exception e)  {
 		
 		try { 
 
 		// error handler
-    	rsp.status(500);
-		if (shouldReturnHtml(req)) {
-			rsp.type("text/html");
-			return body().with(
+		if (html) {
+			return new Reply(500, "text/html", body().with(
 				    h3("API error while executing operation!"),
 				    div().with(
 				    	p(e.toString())
 				    )
-			).render();
+			).render());
 		} else {
-			rsp.type("application/json");
 			ObjectMapper om = new ObjectMapper();
 			ObjectNode jsonResult = om.createObjectNode();
 			jsonResult.put("error", e.toString());
-			return om.writer().writeValueAsString(jsonResult);
+			return new Reply(500, "application/json", om.writer().writeValueAsString(jsonResult));
 		}
 		} catch (JsonProcessingException jpe) {
 			e.printStackTrace();
 		}
-		return null;
+		return new Reply(500, "text/plain", "");
+	}
+	
+	/**
+	 * A reply written once its pending call completes, outside of spark
+	 */
+	public static class Reply {
+		
+		private int status;
+		private String type;
+		private String body;
+		private String location;
+		
+		public Reply(int status, String type, String body) {
+			this.status = status;
+			this.type = type;
+			this.body = body;
+		}
+		
+		public static Reply redirect(String location) {
+			Reply reply = new Reply(302, "text/html", "");
+			reply.location = location;
+			return reply;
+		}
+		
+		public void writeTo(HttpServletResponse rsp) throws IOException {
+			if (location != null) {
+				rsp.sendRedirect(location);
+				return;
+			}
+			rsp.setStatus(status);
+			rsp.setContentType(type);
+			rsp.setCharacterEncoding("UTF-8");
+			rsp.getWriter().write(body);
+		}
 	}
 
 }
@@ -1,5 +1,7 @@
 package util;
 
+import java.util.Objects;
+
 public class NodeConnection {
 	
 	public static final int PEER_TYPE = 0;
@@ -20,4 +22,28 @@ public class NodeConnection {
 		this.tlsCrtPath = tlsCrtPath;
 		this.type = type;
 	}
+	
+	// nodes are the same connection when name, endpoint and TLS cert match
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof NodeConnection))
+			return false;
+		NodeConnection other = (NodeConnection) obj;
+		return port == other.port 
+				&& Objects.equals(name, other.name) 
+				&& Objects.equals(host, other.host) 
+				&& Objects.equals(tlsCrtPath, other.tlsCrtPath);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(name, host, port, tlsCrtPath);
+	}
+	
+	@Override
+	public String toString() {
+		return name + "@" + host + ":" + port;
+	}
 }